@@ -1,14 +1,23 @@
 package sune.app.mediadown.downloader.smf;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.http.HttpHeaders;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -17,13 +26,14 @@ import sune.app.mediadown.InternalState;
 import sune.app.mediadown.MediaDownloader;
 import sune.app.mediadown.TaskStates;
 import sune.app.mediadown.concurrent.SyncObject;
-import sune.app.mediadown.concurrent.Worker;
+import sune.app.mediadown.concurrent.Threads;
 import sune.app.mediadown.conversion.ConversionMedia;
 import sune.app.mediadown.download.AcceleratedFileDownloader;
 import sune.app.mediadown.download.Download;
 import sune.app.mediadown.download.DownloadConfiguration;
 import sune.app.mediadown.download.DownloadContext;
 import sune.app.mediadown.download.DownloadResult;
+import sune.app.mediadown.download.FileDownloader;
 import sune.app.mediadown.download.InternalDownloader;
 import sune.app.mediadown.download.MediaDownloadConfiguration;
 import sune.app.mediadown.event.DownloadEvent;
@@ -34,6 +44,7 @@ import sune.app.mediadown.event.tracker.DownloadTracker;
 import sune.app.mediadown.event.tracker.PlainTextTracker;
 import sune.app.mediadown.event.tracker.TrackerManager;
 import sune.app.mediadown.event.tracker.WaitTracker;
+import sune.app.mediadown.exception.RejectedResponseException;
 import sune.app.mediadown.gui.table.ResolvedMedia;
 import sune.app.mediadown.language.Translation;
 import sune.app.mediadown.media.Media;
@@ -48,12 +59,26 @@ import sune.app.mediadown.pipeline.DownloadPipelineResult;
 import sune.app.mediadown.util.NIO;
 import sune.app.mediadown.util.Opt;
 import sune.app.mediadown.util.Pair;
+import sune.app.mediadown.util.Range;
 import sune.app.mediadown.util.Utils;
 import sune.app.mediadown.util.Utils.Ignore;
 
 public final class SimpleDownloader implements Download, DownloadResult {
 	
 	private static final HttpHeaders HEADERS = Web.Headers.ofSingle("Accept", "*/*");
+	private static final int PROBE_PARALLELISM = 4;
+	
+	// Adaptive range splitting
+	private static final long RANGE_CHUNK_SIZE = 8L * 1024L * 1024L;
+	private static final int RANGE_INITIAL_CONNECTIONS = 2;
+	private static final int RANGE_MAX_CONNECTIONS = 8;
+	private static final int RANGE_MAX_CHUNK_ATTEMPTS = 5;
+	private static final int RANGE_MAX_THROTTLED_ATTEMPTS = 30;
+	private static final long RANGE_SAMPLE_INTERVAL_MS = 1000L;
+	private static final long RANGE_THROTTLE_WAIT_MS = 1000L;
+	private static final long RANGE_MAX_THROTTLE_WAIT_MS = 30000L;
+	private static final double RANGE_MIN_GAIN = 0.1;
+	private static final int RANGE_PLATEAU_SAMPLES = 2;
 	
 	private final Translation translation = MediaDownloader.translation().getTranslation("plugin.downloader.smf");
 	private final TrackerManager trackerManager = new TrackerManager();
@@ -65,11 +90,11 @@ public final class SimpleDownloader implements Download, DownloadResult {
 	
 	private final InternalState state = new InternalState();
 	private final SyncObject lockPause = new SyncObject();
+	private final Set<InternalDownloader> downloaders = ConcurrentHashMap.newKeySet();
+	private final Set<RangeDownloader> rangeDownloaders = ConcurrentHashMap.newKeySet();
 	
-	private Worker worker;
-	private long size = MediaConstants.UNKNOWN_SIZE;
+	private volatile long size = MediaConstants.UNKNOWN_SIZE;
 	private DownloadPipelineResult pipelineResult;
-	private InternalDownloader downloader;
 	private DownloadTracker downloadTracker;
 	private Exception exception;
 	
@@ -88,6 +113,23 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		return new AcceleratedFileDownloader(manager);
 	}
 	
+	private static final boolean isThrottlingResponse(int statusCode) {
+		return statusCode == 429 || statusCode == 503;
+	}
+	
+	private final <T extends InternalDownloader> T registerDownloader(T downloader, DownloadEventHandler handler) {
+		downloader.setTracker(new DownloadTracker());
+		downloader.addEventListener(DownloadEvent.UPDATE, handler::onUpdate);
+		downloader.addEventListener(DownloadEvent.ERROR, handler::onError);
+		downloaders.add(downloader);
+		return downloader;
+	}
+	
+	private final void disposeDownloader(InternalDownloader downloader) {
+		downloaders.remove(downloader);
+		Ignore.callVoid(downloader::close);
+	}
+	
 	private final boolean checkState() {
 		// Check if paused
 		if(isPaused()) lockPause.await();
@@ -95,7 +137,8 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		return state.is(TaskStates.RUNNING);
 	}
 	
-	private final boolean computeTotalSize(List<MediaHolder> mediaHolders, List<MediaHolder> subtitles) {
+	private final boolean computeTotalSize(List<MediaHolder> mediaHolders, List<MediaHolder> subtitles)
+			throws InterruptedException {
 		if(!MediaDownloader.configuration().computeStreamSize())
 			return false;
 		String text = translation.getSingle("progress.compute_total_size");
@@ -103,50 +146,55 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		trackerManager.tracker(tracker);
 		tracker.text(text);
 		tracker.progress(0.0);
-		worker = Worker.createThreadedWorker();
 		size = 0L; // Reset the size
-		double count = mediaHolders.size() + subtitles.size();
+		List<MediaHolder> holders = Stream.concat(mediaHolders.stream(), subtitles.stream())
+			.collect(Collectors.toList());
+		double count = holders.size();
 		AtomicInteger counter = new AtomicInteger();
 		AtomicLong theSize = new AtomicLong();
-		try {
-			for(MediaHolder mh : Utils.iterable(Stream.concat(mediaHolders.stream(), subtitles.stream()).iterator())) {
-				if(!checkState()) {
-					// Important to interrupt before break
-					worker.stop();
-					// Exit the loop
-					break;
+		Set<MediaHolder> probed = ConcurrentHashMap.newKeySet();
+		Consumer<MediaHolder> probe = (mh) -> {
+			long mediaSize = mh.size();
+			
+			if(mediaSize <= 0L) {
+				URI uri = mh.media().uri();
+				Request request = Request.of(uri).headers(HEADERS).HEAD();
+				mediaSize = Ignore.defaultValue(
+					() -> SizeProber.size(uri, HEADERS, () -> Web.size(request)),
+					MediaConstants.UNKNOWN_SIZE
+				);
+				
+				boolean isEstimated = false;
+				
+				if(mediaSize <= 0L) {
+					// If the size is still unknown, try to estimate it
+					mediaSize = (long) MediaUtils.estimateTotalSize(mh.media());
+					isEstimated = true;
 				}
-				long mediaSize = mh.size();
+				
+				// Since we use AcceleratedFileDownloader, treat zero bytes as unknown
 				if(mediaSize > 0L) {
-					theSize.getAndAdd(mediaSize);
-					tracker.progress(counter.incrementAndGet() / count);
-				} else {
-					worker.submit(() -> {
-						Request request = Request.of(mh.media().uri()).headers(HEADERS).HEAD();
-						long size = Ignore.defaultValue(() -> Web.size(request), MediaConstants.UNKNOWN_SIZE);
-						
-						if(size <= 0L) {
-							// If the size is still unknown, try to estimate it
-							size = (long) MediaUtils.estimateTotalSize(mh.media());
-						}
-						
-						// Since we use AcceleratedFileDownloader, treat zero bytes as unknown
-						if(size > 0L) {
-							theSize.getAndAdd(size);
-							mh.size(size);
-						}
-						
-						tracker.progress(counter.incrementAndGet() / count);
-					});
+					mh.size(mediaSize, isEstimated);
 				}
 			}
-			worker.waitTillDone();
-			size = theSize.get();
-			return true;
-		} finally {
-			worker.stop();
-			worker = null;
+			
+			if(mediaSize > 0L) {
+				theSize.getAndAdd(mediaSize);
+			}
+			
+			probed.add(mh);
+			tracker.progress(counter.incrementAndGet() / count);
+		};
+		
+		// The shared probe threads must not wait while paused, they just stop taking more holders.
+		// This thread waits for the resume instead and then probes the remaining holders.
+		for(List<MediaHolder> remaining = holders; !remaining.isEmpty() && checkState();
+				remaining = remaining.stream().filter((h) -> !probed.contains(h)).collect(Collectors.toList())) {
+			SizeProber.forEach(remaining, PROBE_PARALLELISM, this::isRunning, probe);
 		}
+		
+		size = theSize.get();
+		return true;
 	}
 	
 	private final void noConversion(ConversionMedia input, ResolvedMedia output) throws IOException {
@@ -172,12 +220,41 @@ public final class SimpleDownloader implements Download, DownloadResult {
 	}
 	
 	private final boolean doDownload(MediaHolder mediaHolder, Path output) throws Exception {
-		downloader.start(
-			Request.of(mediaHolder.media().uri()).headers(HEADERS).GET(),
-			output,
-			DownloadConfiguration.ofTotalBytes(mediaHolder.size())
-		);
-		return true;
+		DownloadEventHandler handler = new DownloadEventHandler(downloadTracker, null);
+		InternalDownloader downloader = registerDownloader(createDownloader(new TrackerManager()), handler);
+		
+		try {
+			downloader.start(
+				Request.of(mediaHolder.media().uri()).headers(HEADERS).GET(),
+				output,
+				DownloadConfiguration.ofTotalBytes(
+					mediaHolder.isSizeEstimated() ? MediaConstants.UNKNOWN_SIZE : mediaHolder.size()
+				)
+			);
+		} finally {
+			disposeDownloader(downloader);
+		}
+		
+		return checkState();
+	}
+	
+	private final boolean doDownloadAdaptive(MediaHolder mediaHolder, Path output) throws Exception {
+		// Splitting makes sense only when the exact size is reported by the server and there are
+		// at least two ranges. An estimated size would lead to missing or invalid ranges.
+		if(mediaHolder.isSizeEstimated() || mediaHolder.size() < 2L * RANGE_CHUNK_SIZE) {
+			return doDownload(mediaHolder, output);
+		}
+		
+		RangeDownloader rangeDownloader = new RangeDownloader(mediaHolder, output);
+		Boolean result = rangeDownloader.download();
+		
+		if(result == null) {
+			// The server does not support range requests, download it as a whole
+			NIO.deleteFile(output);
+			return doDownload(mediaHolder, output);
+		}
+		
+		return result;
 	}
 	
 	private final Path subtitlesPath(SubtitlesMedia media, String fileName, Path directory) {
@@ -193,16 +270,59 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		));
 	}
 	
+	private final void abortDownloads() {
+		for(RangeDownloader rangeDownloader : rangeDownloaders) {
+			rangeDownloader.abort(null);
+		}
+		
+		for(InternalDownloader downloader : downloaders) {
+			Ignore.callVoid(downloader::stop);
+		}
+	}
+	
+	// Downloads all the media holders (e.g. separate video and audio) concurrently
 	private final boolean download(List<MediaHolder> mediaHolders, List<Path> outputs) throws Exception {
-		Iterator<Path> output = outputs.iterator();
+		if(mediaHolders.isEmpty()) {
+			return checkState();
+		}
 		
-		for(MediaHolder mediaHolder : mediaHolders) {
-			if(!checkState() || !doDownload(mediaHolder, output.next())) {
-				return false;
+		ExecutorService executor = Threads.Pools.newFixed(mediaHolders.size());
+		
+		try {
+			List<Future<Boolean>> futures = new ArrayList<>(mediaHolders.size());
+			Iterator<Path> output = outputs.iterator();
+			
+			for(MediaHolder mediaHolder : mediaHolders) {
+				Path path = output.next();
+				futures.add(executor.submit(() -> checkState() && doDownloadAdaptive(mediaHolder, path)));
+			}
+			
+			boolean success = true;
+			Exception exception = null;
+			
+			for(Future<Boolean> future : futures) {
+				try {
+					if(!future.get()) {
+						success = false;
+					}
+				} catch(ExecutionException ex) {
+					if(exception == null) {
+						Throwable cause = ex.getCause();
+						exception = cause instanceof Exception ? (Exception) cause : ex;
+						// The whole download cannot succeed, stop the other ones
+						abortDownloads();
+					}
+				}
 			}
+			
+			if(exception != null) {
+				throw exception; // Forward the exception
+			}
+			
+			return success && checkState();
+		} finally {
+			executor.shutdownNow();
 		}
-		
-		return true;
 	}
 	
 	private final boolean downloadSubtitles(List<MediaHolder> subtitles, Path destination) throws Exception {
@@ -238,8 +358,6 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		
 		eventRegistry.call(DownloadEvent.BEGIN, this);
 		
-		downloader = createDownloader(new TrackerManager());
-		downloader.setTracker(new DownloadTracker());
 		Ignore.callVoid(() -> NIO.createFile(dest));
 		
 		List<MediaHolder> mediaHolders = MediaUtils.solids(media).stream()
@@ -263,10 +381,6 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		try {
 			List<Path> tempFiles = temporaryFiles(mediaHolders.size());
 			
-			DownloadEventHandler handler = new DownloadEventHandler(downloadTracker);
-			downloader.addEventListener(DownloadEvent.UPDATE, handler::onUpdate);
-			downloader.addEventListener(DownloadEvent.ERROR, handler::onError);
-			
 			download(mediaHolders, tempFiles);
 			downloadSubtitles(subtitles, dest);
 
@@ -303,12 +417,12 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		state.unset(TaskStates.PAUSED);
 		lockPause.unlock();
 		
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.stop();
 		}
 		
-		if(worker != null) {
-			worker.stop();
+		for(RangeDownloader rangeDownloader : rangeDownloaders) {
+			rangeDownloader.abort(null);
 		}
 		
 		if(!state.is(TaskStates.DONE)) {
@@ -323,14 +437,10 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		if(state.is(TaskStates.PAUSED))
 			return; // Nothing to do
 		
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.pause();
 		}
 		
-		if(worker != null) {
-			worker.pause();
-		}
-		
 		state.unset(TaskStates.RUNNING);
 		state.set(TaskStates.PAUSED);
 		
@@ -342,14 +452,10 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		if(!state.is(TaskStates.PAUSED))
 			return; // Nothing to do
 		
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.resume();
 		}
 		
-		if(worker != null) {
-			worker.resume();
-		}
-		
 		state.unset(TaskStates.PAUSED);
 		state.set(TaskStates.RUNNING);
 		lockPause.unlock();
@@ -358,7 +464,7 @@ public final class SimpleDownloader implements Download, DownloadResult {
 	
 	@Override
 	public void close() throws Exception {
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.close();
 		}
 	}
@@ -454,10 +560,13 @@ public final class SimpleDownloader implements Download, DownloadResult {
 	private final class DownloadEventHandler {
 		
 		private final DownloadTracker tracker;
+		private final AtomicLong counter;
 		private final AtomicLong lastSize = new AtomicLong();
+		private volatile boolean propagateError = true;
 		
-		public DownloadEventHandler(DownloadTracker tracker) {
+		public DownloadEventHandler(DownloadTracker tracker, AtomicLong counter) {
 			this.tracker = Objects.requireNonNull(tracker);
+			this.counter = counter;
 		}
 		
 		public void onUpdate(DownloadContext context) {
@@ -468,6 +577,10 @@ public final class SimpleDownloader implements Download, DownloadResult {
 			tracker.update(delta);
 			lastSize.set(current);
 			
+			if(counter != null) {
+				counter.addAndGet(delta);
+			}
+			
 			if(size <= 0L) {
 				long contextTotal = downloadTracker.total();
 				
@@ -481,24 +594,332 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		}
 		
 		public void onError(DownloadContext context) {
+			if(!propagateError)
+				return; // Ignore the error, if needed (used for retries)
+			
 			exception = context.exception();
 			state.set(TaskStates.ERROR);
 			eventRegistry.call(DownloadEvent.ERROR, SimpleDownloader.this);
 		}
+		
+		public void setPropagateError(boolean value) {
+			propagateError = value;
+		}
+	}
+	
+	// Downloads a single file using range requests over multiple connections. The file is split
+	// into fixed-size chunks that are taken by the connections one by one and written directly
+	// to their offsets in the output file. The number of connections starts low and is increased
+	// while the measured throughput keeps scaling. It is decreased when the throughput plateaus
+	// or when the server starts throttling the requests (429 or 503).
+	private final class RangeDownloader {
+		
+		private final MediaHolder mediaHolder;
+		private final Path output;
+		private final long totalBytes;
+		private final int chunksCount;
+		private final int[] attempts;
+		private final int[] throttledAttempts;
+		private final List<Integer> pending = new ArrayList<>();
+		private final AtomicLong transferred = new AtomicLong();
+		private final Object lock = new Object();
+		private ExecutorService executor;
+		private int nextChunk;
+		private int completed;
+		private int connections;
+		private int targetConnections = RANGE_INITIAL_CONNECTIONS;
+		private boolean aborted;
+		private boolean rangesUnsupported;
+		private boolean throttled;
+		private Exception exception;
+		
+		public RangeDownloader(MediaHolder mediaHolder, Path output) {
+			this.mediaHolder = Objects.requireNonNull(mediaHolder);
+			this.output = Objects.requireNonNull(output);
+			this.totalBytes = mediaHolder.size();
+			this.chunksCount = (int) ((totalBytes + RANGE_CHUNK_SIZE - 1L) / RANGE_CHUNK_SIZE);
+			this.attempts = new int[chunksCount];
+			this.throttledAttempts = new int[chunksCount];
+		}
+		
+		private final int claim() {
+			synchronized(lock) {
+				if(aborted || connections > targetConnections) {
+					return -1;
+				}
+				
+				if(!pending.isEmpty()) {
+					return pending.remove(pending.size() - 1);
+				}
+				
+				return nextChunk < chunksCount ? nextChunk++ : -1;
+			}
+		}
+		
+		private final void complete() {
+			synchronized(lock) {
+				++completed;
+				lock.notifyAll();
+			}
+		}
+		
+		// Returns the number of milliseconds to wait before the chunk is downloaded again.
+		private final long retry(int chunk, boolean throttling) throws Exception {
+			long waitMs = 0L;
+			
+			synchronized(lock) {
+				// Throttled attempts are counted separately, since they are expected to happen, however
+				// a server that keeps throttling must not make the download retry forever.
+				if(throttling) {
+					int attempt = ++throttledAttempts[chunk];
+					
+					if(attempt >= RANGE_MAX_THROTTLED_ATTEMPTS) {
+						throw new IllegalStateException("Unable to download a range of the file, the server keeps throttling");
+					}
+					
+					throttled = true;
+					waitMs = throttleWaitMs(attempt);
+				} else if(++attempts[chunk] >= RANGE_MAX_CHUNK_ATTEMPTS) {
+					throw new IllegalStateException("Unable to download a range of the file");
+				}
+				
+				pending.add(chunk);
+				lock.notifyAll();
+			}
+			
+			return waitMs;
+		}
+		
+		// Exponential backoff with equal jitter, so that connections throttled at the same time
+		// do not all hit the server again at the same time.
+		private final long throttleWaitMs(int attempt) {
+			long delay = Math.min(RANGE_MAX_THROTTLE_WAIT_MS, RANGE_THROTTLE_WAIT_MS << Math.min(attempt - 1, 16));
+			long half = delay / 2L;
+			return half + ThreadLocalRandom.current().nextLong(delay - half + 1L);
+		}
+		
+		private final boolean downloadChunk(InternalDownloader downloader, DownloadEventHandler handler, int chunk)
+				throws Exception {
+			long from = chunk * RANGE_CHUNK_SIZE;
+			long to = Math.min(from + RANGE_CHUNK_SIZE, totalBytes);
+			AtomicInteger statusCode = new AtomicInteger();
+			
+			// The range is in the form of <from, to), i.e. the end is exclusive, the same way as the length
+			// of a range is computed as `to - from` by the file downloaders. Should a server return even
+			// the byte at `to`, it is the first byte of the next chunk, so rewriting it is harmless.
+			DownloadConfiguration configuration = DownloadConfiguration.builder()
+				.rangeRequest(new Range<>(from, to))
+				.responseFilter((response) -> {
+					statusCode.set(response.statusCode());
+					return response.statusCode() == 206;
+				})
+				.rangeOutput(new Range<>(from, -1L))
+				.totalBytes(to - from)
+				.build();
+			
+			Request request = Request.of(mediaHolder.media().uri()).headers(HEADERS).GET();
+			long bytes = -1L;
+			boolean error;
+			
+			// Errors are handled by retrying the range instead
+			handler.setPropagateError(false);
+			
+			try {
+				bytes = downloader.start(request, output, configuration);
+				error = downloader.isError() || bytes < to - from;
+			} catch(InterruptedException ex) {
+				throw ex; // Stopped, forward the exception
+			} catch(RejectedResponseException ex) {
+				// Retry, if the response is rejected by the filter
+				error = true;
+			} catch(Exception ex) {
+				error = true;
+			}
+			
+			if(!error) {
+				complete();
+				return true;
+			}
+			
+			// Do not count the bytes of the failed range, neither in the progress nor in the throughput
+			long written = Math.max(0L, downloader.writtenBytes());
+			if(written > 0L) {
+				downloadTracker.update(-written);
+				transferred.addAndGet(-written);
+			}
+			
+			if(!checkState()) {
+				return false;
+			}
+			
+			int code = statusCode.get();
+			
+			if(code == 200) {
+				// The server ignored the range request
+				synchronized(lock) {
+					rangesUnsupported = true;
+				}
+				
+				abort(null);
+				return false;
+			}
+			
+			long waitMs = retry(chunk, isThrottlingResponse(code));
+			
+			if(waitMs > 0L) {
+				Thread.sleep(waitMs);
+			}
+			
+			return true;
+		}
+		
+		private final void runConnection() {
+			DownloadEventHandler handler = new DownloadEventHandler(downloadTracker, transferred);
+			InternalDownloader downloader = registerDownloader(new FileDownloader(new TrackerManager()), handler);
+			
+			try {
+				for(int chunk; checkState() && (chunk = claim()) >= 0;) {
+					if(!downloadChunk(downloader, handler, chunk)) {
+						break;
+					}
+				}
+			} catch(InterruptedException ex) {
+				// Stopped, ignore
+			} catch(Exception ex) {
+				abort(ex);
+			} finally {
+				disposeDownloader(downloader);
+				
+				synchronized(lock) {
+					--connections;
+					lock.notifyAll();
+				}
+			}
+		}
+		
+		private final void openConnections() {
+			// Must be called while holding the lock
+			if(nextChunk >= chunksCount && pending.isEmpty()) {
+				return; // Nothing more to claim
+			}
+			
+			for(; connections < targetConnections && !aborted; ++connections) {
+				executor.submit(this::runConnection);
+			}
+		}
+		
+		private final boolean isFinished() {
+			return aborted || completed == chunksCount || (connections == 0 && !checkStateNonBlocking());
+		}
+		
+		private final boolean checkStateNonBlocking() {
+			return state.is(TaskStates.RUNNING) || state.is(TaskStates.PAUSED);
+		}
+		
+		public void abort(Exception ex) {
+			synchronized(lock) {
+				if(exception == null) {
+					exception = ex;
+				}
+				
+				aborted = true;
+				lock.notifyAll();
+			}
+		}
+		
+		// Returns null, if the server does not support range requests.
+		public Boolean download() throws Exception {
+			executor = Threads.Pools.newFixed(RANGE_MAX_CONNECTIONS);
+			rangeDownloaders.add(this);
+			
+			try {
+				double bestThroughput = 0.0;
+				int plateauSamples = 0;
+				boolean growing = true;
+				long lastTransferred = 0L;
+				long lastTime = System.nanoTime();
+				
+				synchronized(lock) {
+					openConnections();
+					
+					while(!isFinished()) {
+						lock.wait(RANGE_SAMPLE_INTERVAL_MS);
+						
+						long time = System.nanoTime();
+						if(time - lastTime < TimeUnit.MILLISECONDS.toNanos(RANGE_SAMPLE_INTERVAL_MS)
+								&& !throttled) {
+							continue; // Woken up before the end of the sample interval
+						}
+						
+						long current = transferred.get();
+						double throughput = (current - lastTransferred) / ((time - lastTime) / 1e9);
+						lastTransferred = current;
+						lastTime = time;
+						
+						if(throttled) {
+							// Back off immediately and do not try to add more connections later
+							throttled = false;
+							growing = false;
+							targetConnections = Math.max(1, targetConnections - 1);
+						} else if(growing && !isPaused()) {
+							if(throughput > bestThroughput * (1.0 + RANGE_MIN_GAIN)) {
+								bestThroughput = throughput;
+								plateauSamples = 0;
+								
+								if(targetConnections < RANGE_MAX_CONNECTIONS) {
+									++targetConnections;
+								} else {
+									growing = false;
+								}
+							} else if(++plateauSamples >= RANGE_PLATEAU_SAMPLES) {
+								// The last added connection did not help, remove it
+								growing = false;
+								targetConnections = Math.max(1, targetConnections - 1);
+							}
+						}
+						
+						openConnections();
+					}
+					
+					// Wait for all connections to finish their current chunk
+					aborted = aborted || completed != chunksCount;
+					while(connections > 0) {
+						lock.wait();
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+				rangeDownloaders.remove(this);
+			}
+			
+			synchronized(lock) {
+				if(exception != null) {
+					throw exception; // Forward the exception
+				}
+				
+				if(rangesUnsupported) {
+					return null;
+				}
+				
+				return completed == chunksCount && checkState();
+			}
+		}
 	}
 	
 	private static final class MediaHolder {
 		
 		private final Media media;
-		private long size;
+		private volatile long size;
+		private volatile boolean isSizeEstimated;
 		
 		public MediaHolder(Media media) {
 			this.media = Objects.requireNonNull(media);
 			this.size = media.size();
 		}
 		
-		public void size(long size) {
+		public void size(long size, boolean isEstimated) {
 			this.size = size;
+			this.isSizeEstimated = isEstimated;
 		}
 		
 		public Media media() {
@@ -508,5 +929,9 @@ public final class SimpleDownloader implements Download, DownloadResult {
 		public long size() {
 			return size;
 		}
+		
+		public boolean isSizeEstimated() {
+			return isSizeEstimated;
+		}
 	}
 }
\ No newline at end of file
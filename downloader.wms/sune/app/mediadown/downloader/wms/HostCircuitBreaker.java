@@ -0,0 +1,88 @@
+package sune.app.mediadown.downloader.wms;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tracks consecutive failures of requests to a single host across all downloads. When too many
+// requests fail in a row, the circuit is opened and no requests should be sent to the host until
+// a cool-down period elapses, so that a failing server is not flooded with retries. After that,
+// requests are allowed again, and the next failure opens the circuit for a longer period, while
+// a success closes it. Breakers of hosts that have not been used for a while are dropped.
+final class HostCircuitBreaker {
+	
+	private static final int FAILURE_THRESHOLD = 8;
+	private static final long OPEN_MS = 5000L;
+	private static final long MAX_OPEN_MS = 120000L;
+	private static final long IDLE_MS = 600000L;
+	private static final long PRUNE_INTERVAL_MS = 60000L;
+	
+	private static final Map<String, HostCircuitBreaker> breakers = new ConcurrentHashMap<>();
+	private static final AtomicLong nextPrune = new AtomicLong();
+	
+	private int failures;
+	private long openMs;
+	private long openUntil;
+	private volatile long lastUsed;
+	
+	private HostCircuitBreaker() {
+	}
+	
+	public static final HostCircuitBreaker of(URI uri) {
+		String host = Objects.toString(uri.getHost(), "");
+		long now = System.currentTimeMillis();
+		prune(now);
+		HostCircuitBreaker breaker = breakers.computeIfAbsent(host, (k) -> new HostCircuitBreaker());
+		breaker.lastUsed = now;
+		return breaker;
+	}
+	
+	private static final void prune(long now) {
+		long next = nextPrune.get();
+		
+		// Let only a single thread do the pruning per interval
+		if(now < next || !nextPrune.compareAndSet(next, now + PRUNE_INTERVAL_MS)) {
+			return;
+		}
+		
+		breakers.values().removeIf((b) -> b.isIdle(now));
+	}
+	
+	private synchronized boolean isIdle(long now) {
+		return now - lastUsed > IDLE_MS && openUntil <= now;
+	}
+	
+	public synchronized void success() {
+		failures = 0;
+		openMs = 0L;
+		openUntil = 0L;
+	}
+	
+	public synchronized void failure() {
+		if(++failures < FAILURE_THRESHOLD) {
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		
+		if(openUntil > now) {
+			return; // Already open
+		}
+		
+		// Open the circuit, each time for a longer period until a request succeeds
+		openMs = openMs == 0L ? OPEN_MS : Math.min(openMs * 2L, MAX_OPEN_MS);
+		openUntil = now + openMs;
+	}
+	
+	// Returns the number of milliseconds until requests to the host are allowed again, or 0L,
+	// if they are allowed now.
+	public synchronized long remainingMs() {
+		return Math.max(0L, openUntil - System.currentTimeMillis());
+	}
+	
+	public boolean isOpen() {
+		return remainingMs() > 0L;
+	}
+}
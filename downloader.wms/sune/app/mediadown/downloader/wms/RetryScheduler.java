@@ -0,0 +1,60 @@
+package sune.app.mediadown.downloader.wms;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Timing of retries shared by all downloads. Backoff delays grow exponentially up to a configurable
+// limit (the maxWaitOnRetryMs property) and are jittered, so that segments failing at the same time are not retried at the same time again.
+// Periodic actions (e.g. updating retry trackers) run on a single shared timer thread instead of
+// each waiting thread waking up on its own.
+final class RetryScheduler {
+	
+	private static final int MAX_BACKOFF_EXPONENT = 16;
+	private static final long KEEP_ALIVE_MS = 30000L;
+	
+	private static final ScheduledThreadPoolExecutor executor;
+	
+	static {
+		executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory());
+		executor.setRemoveOnCancelPolicy(true);
+		executor.setKeepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+		// Do not keep the thread when nothing is scheduled
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	// Forbid anyone to create an instance of this class
+	private RetryScheduler() {
+	}
+	
+	// Returns the delay before the given retry attempt (starting at 1). The delay is doubled with
+	// every attempt, limited to maxMs (but never below baseMs), and then randomized to the upper
+	// half of its value (equal jitter). Note that the limit also bounds the total time spent
+	// retrying, e.g. 500 attempts with a 60 s limit take at most about 8 hours.
+	public static final long backoffMs(long baseMs, long maxMs, int attempt) {
+		if(baseMs <= 0L || attempt <= 0) {
+			return 0L;
+		}
+		
+		int exponent = Math.min(attempt - 1, MAX_BACKOFF_EXPONENT);
+		long delay = Math.min(Math.max(baseMs, maxMs), baseMs << exponent);
+		long half = delay / 2L;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1L);
+	}
+	
+	public static final ScheduledFuture<?> every(long periodMs, Runnable action) {
+		return executor.scheduleAtFixedRate(action, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+	
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package sune.app.mediadown.downloader.wms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import sune.app.mediadown.util.Utils.Ignore;
+
+// Writes segments of a single track, in order, to the track's output file using a single open
+// channel. Small segments are coalesced in a direct buffer and written at once, large ones are
+// transferred directly. The data are synchronized to the disk only at checkpoints, at which point
+// the written segments are also recorded in the journal, so the journal never refers to data that
+// may not be on the disk.
+final class SegmentSink implements AutoCloseable {
+	
+	private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final long CHECKPOINT_BYTES = 64L * 1024L * 1024L;
+	
+	private final FileChannel channel;
+	private final SegmentsJournal journal;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private long[] pending = new long[64];
+	private int pendingCount;
+	private long pendingBytes;
+	// Offset right after the last byte written to the channel (excluding the buffer)
+	private long position;
+	
+	private SegmentSink(FileChannel channel, SegmentsJournal journal) {
+		this.channel = channel;
+		this.journal = journal;
+	}
+	
+	public static final SegmentSink open(Path output, long fingerprint) throws IOException {
+		SegmentsJournal journal = SegmentsJournal.open(output, fingerprint);
+		
+		try {
+			FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			return new SegmentSink(channel, journal);
+		} catch(IOException ex) {
+			Ignore.callVoid(journal::close);
+			throw ex; // Forward the exception
+		}
+	}
+	
+	private final void addPending(long size) {
+		if(pendingCount == pending.length) {
+			long[] newPending = new long[pending.length * 2];
+			System.arraycopy(pending, 0, newPending, 0, pendingCount);
+			pending = newPending;
+		}
+		
+		pending[pendingCount++] = size;
+		pendingBytes += size;
+	}
+	
+	private final void flush() throws IOException {
+		buffer.flip();
+		
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		
+		buffer.clear();
+	}
+	
+	// Prepares the output for continuing after the last segment recorded in the journal.
+	public void resume() throws IOException {
+		long end = journal.end();
+		
+		// Discard the content of incomplete segments, if any
+		channel.truncate(end);
+		position = end;
+	}
+	
+	// Appends the content of the given file with the given number of bytes as the next segment.
+	public void append(Path file, long bytes) throws IOException {
+		try(FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+			if(bytes > buffer.remaining()) {
+				flush();
+			}
+			
+			if(bytes >= BUFFER_SIZE) {
+				// Too big to be coalesced, transfer it directly
+				for(long written = 0L, count; written < bytes; written += count) {
+					if((count = channel.transferFrom(input, position + written, bytes - written)) <= 0L) {
+						throw new IOException("Unexpected end of the segment file");
+					}
+				}
+				
+				position += bytes;
+			} else {
+				int limit = buffer.position() + (int) bytes;
+				ByteBuffer slice = buffer.duplicate().limit(limit);
+				
+				while(slice.hasRemaining() && input.read(slice) >= 0);
+				
+				if(slice.hasRemaining()) {
+					throw new IOException("Unexpected end of the segment file");
+				}
+				
+				buffer.position(limit);
+			}
+		}
+		
+		addPending(bytes);
+		
+		if(pendingBytes >= CHECKPOINT_BYTES) {
+			checkpoint();
+		}
+	}
+	
+	// Writes all the buffered data, synchronizes them to the disk and records them in the journal.
+	public void checkpoint() throws IOException {
+		if(pendingCount == 0) {
+			return; // Nothing to do
+		}
+		
+		flush();
+		channel.force(false);
+		
+		for(int i = 0; i < pendingCount; ++i) {
+			journal.append(pending[i]);
+		}
+		
+		pendingCount = 0;
+		pendingBytes = 0L;
+	}
+	
+	public SegmentsJournal journal() {
+		return journal;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			// Keep all the written segments, even if not finished, so that they do not have to be
+			// downloaded again, and remove anything written after them.
+			checkpoint();
+			channel.truncate(position);
+		} finally {
+			try {
+				channel.close();
+			} finally {
+				journal.close();
+			}
+		}
+	}
+}
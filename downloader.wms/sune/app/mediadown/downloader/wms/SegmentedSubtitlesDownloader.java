@@ -1,34 +1,24 @@
 package sune.app.mediadown.downloader.wms;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
-import sune.app.mediadown.Shared;
 import sune.app.mediadown.download.FileDownloader;
 import sune.app.mediadown.event.tracker.TrackerManager;
 import sune.app.mediadown.media.MediaFormat;
 import sune.app.mediadown.media.MediaMetadata;
 import sune.app.mediadown.media.MediaMimeType;
-import sune.app.mediadown.util.Pair;
-import sune.app.mediadown.util.Ref;
 import sune.app.mediadown.util.Reflection3;
-import sune.app.mediadown.util.Regex;
-import sune.app.mediadown.util.Utils;
 
 public final class SegmentedSubtitlesDownloader extends FileDownloader {
 	
@@ -175,11 +165,14 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 		private static final long DIV_MINUTES = SECONDS * DIV_SECONDS;
 		private static final long DIV_HOURS = MINUTES * DIV_MINUTES;
 		
-		private static final VTTTimestamp ZERO = new VTTTimestamp(0L);
+		// Length of the mandatory part of a timestamp, i.e. mm:ss.fff
+		private static final int LENGTH_NO_HOURS = 9;
+		// Maximum length of the hours part, so that the value cannot overflow
+		private static final int MAX_LENGTH_HOURS = 12;
+		// Maximum number of bytes written by the write(long, byte[], int) method
+		static final int MAX_LENGTH = 20 + LENGTH_NO_HOURS + 1;
 		
-		private static final Regex REGEX = Regex.of(
-			"^\\s*(?:(?<h>[0-9]{2,}):)?(?<m>[0-5][0-9]):(?<s>[0-5][0-9])\\.(?<f>[0-9]{3})\\s*$"
-		);
+		private static final VTTTimestamp ZERO = new VTTTimestamp(0L);
 		
 		private final long value;
 		
@@ -223,28 +216,111 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 			return value;
 		}
 		
-		public static final VTTTimestamp of(String string) {
-			Matcher matcher = REGEX.matcher(string);
+		private static final boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+		}
+		
+		private static final int digit(byte b) {
+			return b >= '0' && b <= '9' ? b - '0' : -1;
+		}
+		
+		private static final int twoDigits(byte[] bytes, int index, int maxTens) {
+			int a = digit(bytes[index]), b = digit(bytes[index + 1]);
+			return a < 0 || a > maxTens || b < 0 ? -1 : a * 10 + b;
+		}
+		
+		// Parses a timestamp in the format [hh:]mm:ss.fff, surrounded by optional whitespace.
+		// Returns the value in milliseconds or -1L, if the timestamp is not valid.
+		static final long parse(byte[] bytes, int start, int end) {
+			while(start < end && isWhitespace(bytes[start])) ++start;
+			while(end > start && isWhitespace(bytes[end - 1])) --end;
 			
-			if(!matcher.matches()) {
-				throw new IllegalArgumentException("Invalid timestamp");
+			int tail = end - LENGTH_NO_HOURS;
+			
+			if(tail < start) {
+				return -1L;
 			}
 			
-			String hours = matcher.group("h");
-			String minutes = matcher.group("m");
-			String seconds = matcher.group("s");
-			String fraction = matcher.group("f");
+			long hours = 0L;
 			
-			if(hours == null) {
-				hours = "0";
+			if(tail > start) {
+				int length = tail - 1 - start;
+				
+				if(bytes[tail - 1] != ':' || length < 2 || length > MAX_LENGTH_HOURS) {
+					return -1L;
+				}
+				
+				for(int i = start, d; i < tail - 1; ++i) {
+					if((d = digit(bytes[i])) < 0) {
+						return -1L;
+					}
+					
+					hours = hours * 10L + d;
+				}
 			}
 			
-			return new VTTTimestamp(
-				Integer.valueOf(hours),
-				Integer.valueOf(minutes),
-				Integer.valueOf(seconds),
-				Integer.valueOf(fraction)
-			);
+			if(bytes[tail + 2] != ':' || bytes[tail + 5] != '.') {
+				return -1L;
+			}
+			
+			int minutes = twoDigits(bytes, tail, 5);
+			int seconds = twoDigits(bytes, tail + 3, 5);
+			int fraction = twoDigits(bytes, tail + 6, 9);
+			int last = digit(bytes[tail + 8]);
+			
+			if(minutes < 0 || seconds < 0 || fraction < 0 || last < 0) {
+				return -1L;
+			}
+			
+			return ((hours * MINUTES + minutes) * SECONDS + seconds) * FRACTION + fraction * 10 + last;
+		}
+		
+		private static final int writeDigits(long value, int width, byte[] bytes, int index) {
+			int count = 1;
+			for(long v = value; v >= 10L; v /= 10L, ++count);
+			
+			for(int i = count; i < width; ++i) {
+				bytes[index++] = '0';
+			}
+			
+			for(int i = index + count - 1; i >= index; --i, value /= 10L) {
+				bytes[i] = (byte) ('0' + value % 10L);
+			}
+			
+			return index + count;
+		}
+		
+		// Writes the timestamp to the given array and returns the index after the last written byte.
+		// The output is the same as of the toString() method. The array must have enough space, i.e.
+		// at least MAX_LENGTH bytes.
+		static final int write(long value, byte[] bytes, int index) {
+			long hours = value / DIV_HOURS;
+			
+			if(hours < 0L) {
+				// Mimic the %02d format, where the sign is included in the width
+				bytes[index++] = '-';
+				index = writeDigits(-hours, 1, bytes, index);
+			} else {
+				index = writeDigits(hours, 2, bytes, index);
+			}
+			
+			bytes[index++] = ':';
+			index = writeDigits(Math.abs((value / DIV_MINUTES) % MINUTES), 2, bytes, index);
+			bytes[index++] = ':';
+			index = writeDigits(Math.abs((value / DIV_SECONDS) % SECONDS), 2, bytes, index);
+			bytes[index++] = '.';
+			return writeDigits(Math.abs(value % FRACTION), 3, bytes, index);
+		}
+		
+		public static final VTTTimestamp of(String string) {
+			byte[] bytes = string.getBytes(StandardCharsets.US_ASCII);
+			long value = parse(bytes, 0, bytes.length);
+			
+			if(value < 0L) {
+				throw new IllegalArgumentException("Invalid timestamp");
+			}
+			
+			return new VTTTimestamp(value);
 		}
 		
 		public static final VTTTimestamp of(int hours, int minutes, int seconds, int fraction) {
@@ -281,6 +357,7 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 		public int minutes() { return (int) Math.abs((value / DIV_MINUTES) % MINUTES); }
 		public int seconds() { return (int) Math.abs((value / DIV_SECONDS) % SECONDS); }
 		public int fraction() { return (int) Math.abs(value % FRACTION); }
+		public long value() { return value; }
 		
 		@Override
 		public String toString() {
@@ -319,20 +396,17 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 			}
 			
 			@Override
-			protected Pair<VTTTimestamp, VTTTimestamp> modifyCueTimestamps(VTTTimestamp from, VTTTimestamp to) {
-				from = from.subtract(startTime);
-				to = to.subtract(startTime);
-				return new Pair<>(from, to);
+			protected long cueTimeOffset(long from) {
+				return startTime.value();
 			}
 		}
 	}
 	
 	private static final class StartAtZeroSubtitlesRetimeStrategy implements SubtitlesRetimeStrategy {
 		
-		private final Ref.Mutable<VTTTimestamp> firstTimeRef = new Ref.Mutable<>(null);
-		
 		private VTTTimestamp startTime;
 		private boolean ignoreHours;
+		private long firstTime = -1L;
 		
 		@Override
 		public void load(MediaMetadata metadata) {
@@ -354,33 +428,40 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 			}
 			
 			@Override
-			protected Pair<VTTTimestamp, VTTTimestamp> modifyCueTimestamps(VTTTimestamp from, VTTTimestamp to) {
-				VTTTimestamp firstTime = firstTimeRef.get();
-				
-				if(firstTime == null) {
+			protected long cueTimeOffset(long from) {
+				if(firstTime < 0L) {
 					firstTime = from;
 					
 					if(startTime != null) {
-						int hours = ignoreHours ? from.hours() : startTime.hours();
+						int hours = ignoreHours ? (int) (from / VTTTimestamp.DIV_HOURS) : startTime.hours();
 						firstTime = VTTTimestamp.of(
 							hours, startTime.minutes(), startTime.seconds(), startTime.fraction()
-						);
+						).value();
 					}
-					
-					firstTimeRef.set(firstTime);
 				}
 				
-				from = from.subtract(firstTime);
-				to = to.subtract(firstTime);
-				return new Pair<>(from, to);
+				return firstTime;
 			}
 		}
 	}
 	
+	// Rewrites segments of a VTT file directly on bytes. The input is processed line by line in
+	// a single buffer, no lines are decoded to strings, only the cue timings are rewritten and
+	// everything else is copied as-is. Since all the markers of the format are ASCII, this works
+	// for any ASCII-compatible charset, including UTF-8.
 	// Reference: https://www.w3.org/TR/webvtt1/#file-structure
 	private static class SegmentedVTTInputStream extends InputStream {
 		
-		private static final String MAGIC = "WEBVTT";
+		private static final byte[] MAGIC = bytes("WEBVTT");
+		private static final byte[] REGION = bytes("REGION");
+		private static final byte[] STYLE = bytes("STYLE");
+		private static final byte[] NOTE = bytes("NOTE");
+		private static final byte[] ARROW = bytes("-->");
+		private static final byte[] ARROW_OUTPUT = bytes(" --> ");
+		private static final byte[] BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+		private static final byte[] NEW_LINE = bytes(System.lineSeparator());
+		
+		private static final int BUFFER_SIZE = 8192;
 		
 		private static final int STATE_NONE = 0;
 		private static final int STATE_HEADER = 1;
@@ -393,116 +474,185 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 		private final InputStream stream;
 		private final boolean includeMagic;
 		
-		private BufferedReader reader;
-		private BufferedWriter writer;
-		private InputStream modified;
-		private boolean initialized;
+		// Input buffer, the current line is always in the range <lineStart, lineEnd)
+		private byte[] input = new byte[BUFFER_SIZE];
+		private int inputPos;
+		private int inputLimit;
+		private boolean eos;
+		private int lineStart;
+		private int lineEnd;
+		
+		// Output buffer, the data to be read are in the range <outputPos, outputLimit)
+		private byte[] output = new byte[BUFFER_SIZE];
+		private int outputPos;
+		private int outputLimit;
+		
 		private int state = STATE_NONE;
 		private int lineTerminatorCtr;
-		private boolean written;
 		
 		public SegmentedVTTInputStream(InputStream stream, boolean includeMagic) {
 			this.stream = stream;
 			this.includeMagic = includeMagic;
 		}
 		
-		private final void initialize() throws IOException {
-			PipedOutputStream out = new PipedOutputStream();
-			reader = new BufferedReader(new InputStreamReader(stream, Shared.CHARSET));
-			writer = new BufferedWriter(new OutputStreamWriter(out, Shared.CHARSET));
-			modified = new PipedInputStream(out);
-			initialized = true;
+		private static final byte[] bytes(String string) {
+			return string.getBytes(StandardCharsets.US_ASCII);
 		}
 		
-		private final String readLine() throws IOException {
-			return reader.readLine();
+		private static final boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+			return Arrays.equals(bytes, start, Math.min(start + prefix.length, end), prefix, 0, prefix.length);
 		}
 		
-		private final void writeLine(String line) throws IOException {
-			if(!line.isEmpty()) {
-				writer.write(line);
+		private static final int indexOf(byte[] bytes, int start, int end, byte[] sequence) {
+			for(int i = start, last = end - sequence.length; i <= last; ++i) {
+				if(bytes[i] == sequence[0] && startsWith(bytes, i, end, sequence)) {
+					return i;
+				}
 			}
 			
-			writer.newLine();
-			written = true;
+			return -1;
 		}
 		
-		private final void flush() throws IOException {
-			writer.flush();
+		private final boolean fill() throws IOException {
+			if(eos) {
+				return false;
+			}
+			
+			if(inputPos > 0) {
+				// Move the unprocessed bytes to the beginning of the buffer
+				System.arraycopy(input, inputPos, input, 0, inputLimit - inputPos);
+				inputLimit -= inputPos;
+				inputPos = 0;
+			} else if(inputLimit == input.length) {
+				// The line does not fit in the buffer, so make it bigger
+				input = Arrays.copyOf(input, input.length * 2);
+			}
+			
+			int read = stream.read(input, inputLimit, input.length - inputLimit);
+			
+			if(read < 0) {
+				eos = true;
+				return false;
+			}
+			
+			inputLimit += read;
+			return true;
 		}
 		
-		private final void clean() {
-			written = false;
+		// Finds the next line, supported line terminators are LF, CR LF and CR.
+		private final boolean nextLine() throws IOException {
+			for(int i = inputPos;;) {
+				for(; i < inputLimit; ++i) {
+					byte b = input[i];
+					
+					if(b == '\n' || b == '\r') {
+						// Must know the next byte to correctly handle CR LF
+						if(b == '\r' && i + 1 == inputLimit && !eos) {
+							break;
+						}
+						
+						lineStart = inputPos;
+						lineEnd = i;
+						inputPos = b == '\r' && i + 1 < inputLimit && input[i + 1] == '\n' ? i + 2 : i + 1;
+						return true;
+					}
+				}
+				
+				int offset = i - inputPos;
+				
+				if(!fill()) {
+					if(inputPos == inputLimit) {
+						return false; // EOS
+					}
+					
+					// The last line without a line terminator
+					lineStart = inputPos;
+					lineEnd = inputLimit;
+					inputPos = inputLimit;
+					return true;
+				}
+				
+				i = inputPos + offset;
+			}
+		}
+		
+		private final void ensureOutput(int length) {
+			if(outputLimit + length > output.length) {
+				output = Arrays.copyOf(output, Math.max(output.length * 2, outputLimit + length));
+			}
+		}
+		
+		private final void write(byte[] bytes, int start, int end) {
+			ensureOutput(end - start);
+			System.arraycopy(bytes, start, output, outputLimit, end - start);
+			outputLimit += end - start;
+		}
+		
+		private final void writeLine(int start, int end) {
+			write(input, start, end);
+			write(NEW_LINE, 0, NEW_LINE.length);
+		}
+		
+		private final void writeLine() {
+			writeLine(lineStart, lineEnd);
 		}
 		
 		private final void wrongVTTFormat() {
 			throw new IllegalStateException("Wrong VTT format");
 		}
 		
-		private final boolean readMagic(String line) throws IOException {
-			if(!line.startsWith(MAGIC)) {
+		private final void readMagic() {
+			int start = lineStart;
+			
+			// Skip the byte order mark, if present
+			if(startsWith(input, start, lineEnd, BOM)) {
+				start += BOM.length;
+			}
+			
+			if(!startsWith(input, start, lineEnd, MAGIC)) {
 				throw new IllegalStateException("Missing magic");
 			}
 			
 			if(includeMagic) {
 				// Keep the original line
-				writeLine(line);
+				writeLine(start, lineEnd);
 			}
 			
 			state = STATE_HEADER;
-			return true;
-		}
-		
-		private final boolean readHeader(String line) throws IOException {
-			// Ignore all lines
-			return true;
-		}
-		
-		private final boolean readRegion(String line) throws IOException {
-			// Keep all lines
-			writeLine(line);
-			return true;
-		}
-		
-		private final boolean readStyle(String line) throws IOException {
-			// Keep all lines
-			writeLine(line);
-			return true;
-		}
-		
-		private final boolean readComment(String line) throws IOException {
-			// Keep all lines
-			writeLine(line);
-			return true;
 		}
 		
-		private final boolean readCue(String line) throws IOException {
-			if(!line.contains("-->")) {
-				writeLine(line); // Keep cue identifiers and cue themselves
-				return true;
-			}
+		private final void readCue() {
+			int arrow = indexOf(input, lineStart, lineEnd, ARROW);
 			
-			String[] parts = Utils.OfString.split(line, "-->", 2);
-			
-			if(parts.length != 2) {
-				wrongVTTFormat();
+			if(arrow < 0) {
+				writeLine(); // Keep cue identifiers and cue themselves
+				return;
 			}
 			
-			VTTTimestamp from = VTTTimestamp.of(parts[0]);
-			VTTTimestamp to = VTTTimestamp.of(parts[1]);
-			Pair<VTTTimestamp, VTTTimestamp> modified = modifyCueTimestamps(from, to);
+			// The end timestamp is followed by optional cue settings, keep them as they are
+			int toStart = arrow + ARROW.length;
+			for(; toStart < lineEnd && VTTTimestamp.isWhitespace(input[toStart]); ++toStart);
+			int toEnd = toStart;
+			for(; toEnd < lineEnd && !VTTTimestamp.isWhitespace(input[toEnd]); ++toEnd);
+			
+			long from = VTTTimestamp.parse(input, lineStart, arrow);
+			long to = VTTTimestamp.parse(input, toStart, toEnd);
 			
-			// Allow no modification by just returning null
-			if(modified != null) {
-				from = modified.a;
-				to = modified.b;
+			if(from < 0L || to < 0L) {
+				throw new IllegalArgumentException("Invalid timestamp");
 			}
 			
-			writeLine(from + " --> " + to);
-			return true;
+			long offset = cueTimeOffset(from);
+			
+			ensureOutput(2 * VTTTimestamp.MAX_LENGTH + ARROW_OUTPUT.length);
+			outputLimit = VTTTimestamp.write(from - offset, output, outputLimit);
+			write(ARROW_OUTPUT, 0, ARROW_OUTPUT.length);
+			ensureOutput(VTTTimestamp.MAX_LENGTH);
+			outputLimit = VTTTimestamp.write(to - offset, output, outputLimit);
+			writeLine(toEnd, lineEnd);
 		}
 		
-		private final int transitionStateEmptyLine() throws IOException {
+		private final int transitionStateEmptyLine() {
 			switch(state) {
 				case STATE_HEADER:
 				case STATE_REGION:
@@ -518,14 +668,14 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 			}
 		}
 		
-		private final int transitionState(String line) throws IOException {
+		private final int transitionState() {
 			switch(state) {
 				case STATE_CONTENT:
-					if(line.startsWith("REGION"))
+					if(startsWith(input, lineStart, lineEnd, REGION))
 						return STATE_REGION;
-					if(line.startsWith("STYLE"))
+					if(startsWith(input, lineStart, lineEnd, STYLE))
 						return STATE_STYLE;
-					if(line.startsWith("NOTE"))
+					if(startsWith(input, lineStart, lineEnd, NOTE))
 						return STATE_COMMENT;
 					
 					return STATE_CUE;
@@ -534,101 +684,93 @@ public final class SegmentedSubtitlesDownloader extends FileDownloader {
 			}
 		}
 		
-		private final boolean processState(String line) throws IOException {
+		private final void processState() {
 			switch(state) {
-				case STATE_NONE: return readMagic(line);
-				case STATE_HEADER: return readHeader(line);
-				case STATE_REGION: return readRegion(line);
-				case STATE_STYLE: return readStyle(line);
-				case STATE_COMMENT: return readComment(line);
-				case STATE_CUE: return readCue(line);
-				default: wrongVTTFormat(); return false;
+				case STATE_NONE: readMagic(); break;
+				case STATE_HEADER: break; // Ignore all lines
+				case STATE_REGION: // Keep all lines
+				case STATE_STYLE: // Keep all lines
+				case STATE_COMMENT: writeLine(); break; // Keep all lines
+				case STATE_CUE: readCue(); break;
+				default: wrongVTTFormat(); break;
 			}
 		}
 		
 		private final boolean processNextLine() throws IOException {
-			String line;
-			if((line = readLine()) == null) {
+			if(!nextLine()) {
 				return false; // EOS
 			}
 			
-			if(line.isEmpty()) {
+			if(lineStart == lineEnd) {
 				++lineTerminatorCtr;
 				state = transitionStateEmptyLine();
-				writeLine(""); // Keep empty lines
+				writeLine(); // Keep empty lines
 				return true;
 			}
 			
-			state = transitionState(line);
-			boolean ok = processState(line);
+			state = transitionState();
+			processState();
 			lineTerminatorCtr = 0;
-			return ok;
+			return true;
+		}
+		
+		private final boolean ensureAvailable() throws IOException {
+			if(outputPos < outputLimit) {
+				return true;
+			}
+			
+			outputPos = 0;
+			outputLimit = 0;
+			
+			// Some lines may not produce any output, e.g. the header, so process until some are produced
+			do {
+				if(!processNextLine()) {
+					return false; // EOS
+				}
+			} while(outputLimit == 0);
+			
+			return true;
 		}
 		
-		protected Pair<VTTTimestamp, VTTTimestamp> modifyCueTimestamps(VTTTimestamp from, VTTTimestamp to) {
-			return null; // By default do not modify
+		// Returns the offset that is subtracted from both timestamps of a cue
+		protected long cueTimeOffset(long from) {
+			return 0L; // By default do not modify
 		}
 		
 		@Override
 		public int read() throws IOException {
-			if(!initialized) {
-				initialize();
+			return ensureAvailable() ? output[outputPos++] & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Objects.checkFromIndexSize(off, len, b.length);
+			
+			if(len == 0) {
+				return 0;
 			}
 			
-			// Check whether there are no available data to be read.
-			// Zero may also mean that an error occurred or that the stream is closed/broken.
-			// However, this will be checked in the processNextLine() method. 
-			if(modified.available() == 0) {
-				do {
-					if(!processNextLine()) {
-						return -1; // EOS
-					}
-				} while(!written);
-				
-				flush();
-				clean();
+			int total = 0;
+			
+			// Process as many lines as needed to fill the whole array
+			while(total < len && ensureAvailable()) {
+				int count = Math.min(len - total, outputLimit - outputPos);
+				System.arraycopy(output, outputPos, b, off + total, count);
+				outputPos += count;
+				total += count;
 			}
 			
-			return modified.read();
+			return total == 0 ? -1 : total;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return outputLimit - outputPos;
 		}
 		
 		@Override
 		public void close() throws IOException {
-			IOException exception = null;
-			
-			try {
-				if(reader != null) {
-					try {
-						reader.close();
-					} catch(IOException ex) {
-						exception = ex;
-					}
-				}
-				
-				if(writer != null) {
-					try {
-						writer.close();
-					} catch(IOException ex) {
-						exception = ex;
-					}
-				}
-				
-				if(modified != null) {
-					try {
-						modified.close();
-					} catch(IOException ex) {
-						exception = ex;
-					}
-				}
-				
-				if(exception != null) {
-					throw exception;
-				}
-			} finally {
-				reader = null;
-				writer = null;
-				modified = null;
-			}
+			stream.close();
 		}
 	}
-}
\ No newline at end of file
+}
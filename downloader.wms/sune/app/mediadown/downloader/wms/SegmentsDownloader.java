@@ -1,13 +1,26 @@
 package sune.app.mediadown.downloader.wms;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpHeaders;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
@@ -21,6 +34,7 @@ import sune.app.mediadown.InternalState;
 import sune.app.mediadown.MediaDownloader;
 import sune.app.mediadown.TaskStates;
 import sune.app.mediadown.concurrent.SyncObject;
+import sune.app.mediadown.concurrent.Threads;
 import sune.app.mediadown.concurrent.Worker;
 import sune.app.mediadown.conversion.ConversionMedia;
 import sune.app.mediadown.download.Download;
@@ -71,7 +85,15 @@ import sune.app.mediadown.util.VideoUtils;
 public final class SegmentsDownloader implements Download, DownloadResult {
 	
 	private static final HttpHeaders HEADERS = Web.Headers.ofSingle("Accept", "*/*");
-	private static final long TIME_UPDATE_RESOLUTION_MS = 50L;
+	private static final HttpHeaders HEADERS_PROBE = Web.Headers.ofSingle("Accept", "*/*", "Range", "bytes=0-0");
+	private static final long TIME_UPDATE_RESOLUTION_MS = 250L;
+	private static final int PROBE_PARALLELISM_MULTIPLEXED = 16;
+	private static final int PROBE_PARALLELISM_CONNECTIONS = 4;
+	private static final int PROBE_MAX_ATTEMPTS = 2;
+	private static final int TS_PACKET_SIZE = 188;
+	private static final byte TS_SYNC_BYTE = 0x47;
+	private static final List<String> EXTENSIONS_TS = List.of("ts");
+	private static final List<String> EXTENSIONS_MP4 = List.of("mp4", "m4v", "m4a");
 	
 	private final Translation translation = MediaDownloader.translation().getTranslation("plugin.downloader.wms");
 	private final TrackerManager trackerManager = new TrackerManager();
@@ -82,28 +104,37 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 	private final MediaDownloadConfiguration configuration;
 	private final int maxRetryAttempts;
 	private final int waitOnRetryMs;
+	private final int maxWaitOnRetryMs;
+	private final int segmentConnections;
 	
 	private final InternalState state = new InternalState();
 	private final SyncObject lockPause = new SyncObject();
+	private final Set<InternalDownloader> downloaders = ConcurrentHashMap.newKeySet();
+	private final Set<TrackDownloader> trackDownloaders = ConcurrentHashMap.newKeySet();
+	private final Object lockRetry = new Object();
+	private final Object lockWait = new Object();
 	
 	private TotalSizeComputer totalSizeComputer;
 	private final AtomicLong size = new AtomicLong(MediaConstants.UNKNOWN_SIZE);
 	private DownloadPipelineResult pipelineResult;
-	private InternalDownloader downloader;
-	private InternalDownloader temporaryDownloader;
 	private DownloadTracker downloadTracker;
+	private ConnectionBudget budget;
 	private Exception exception;
-	private DownloadConfiguration.Builder configurationBuilder;
-	private DownloadEventHandler handler;
+	private RetryDownloadSimpleTracker retryTracker;
+	private Tracker previousTracker;
+	private int retryingCount;
 	
 	SegmentsDownloader(
-			Media media, Path dest, MediaDownloadConfiguration configuration, int maxRetryAttempts, int waitOnRetryMs
+			Media media, Path dest, MediaDownloadConfiguration configuration, int maxRetryAttempts, int waitOnRetryMs,
+			int maxWaitOnRetryMs, int segmentConnections
 	) {
-		this.media            = Objects.requireNonNull(media);
-		this.dest             = Objects.requireNonNull(dest);
-		this.configuration    = Objects.requireNonNull(configuration);
-		this.maxRetryAttempts = checkMaxRetryAttempts(maxRetryAttempts);
-		this.waitOnRetryMs    = checkMilliseconds(waitOnRetryMs);
+		this.media              = Objects.requireNonNull(media);
+		this.dest               = Objects.requireNonNull(dest);
+		this.configuration      = Objects.requireNonNull(configuration);
+		this.maxRetryAttempts   = checkMaxRetryAttempts(maxRetryAttempts);
+		this.waitOnRetryMs      = checkMilliseconds(waitOnRetryMs);
+		this.maxWaitOnRetryMs   = checkMilliseconds(maxWaitOnRetryMs);
+		this.segmentConnections = checkSegmentConnections(segmentConnections);
 	}
 	
 	private static final int checkMaxRetryAttempts(int maxRetryAttempts) {
@@ -122,13 +153,65 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		return ms;
 	}
 	
+	private static final int checkSegmentConnections(int segmentConnections) {
+		// Treat non-positive values as a request for a single connection, since older
+		// configurations may not have the value set properly.
+		return Math.max(1, segmentConnections);
+	}
+	
 	private static final int compareFirstLongestString(String a, String b) {
 		int cmp; return (cmp = Integer.compare(b.length(), a.length())) == 0 ? 1 : cmp;
 	}
 	
-	private static final Pair<Long, Version> sizeAndVersionOf(URI uri, HttpHeaders headers) throws Exception {
-		Response response = Web.peek(Request.of(uri).headers(headers).HEAD());
-		return new Pair<>(Web.size(response), response.version());
+	private static final boolean isSuccessfulResponse(Response response) {
+		int code = response.statusCode();
+		return code >= 200 && code < 300;
+	}
+	
+	// Returns whether the server itself failed or is overloaded, unlike when it just refuses the request
+	private static final boolean isServerFailure(Response response) {
+		int code = response.statusCode();
+		return code == 429 || code >= 500;
+	}
+	
+	private static final long sizeOfContentRange(Response response) {
+		// The format is: bytes <from>-<to>/<size>, where size may be '*' when unknown
+		String value = response.headers().firstValue("Content-Range").orElse(null);
+		int index;
+		
+		if(value == null || (index = value.lastIndexOf('/')) < 0) {
+			return MediaConstants.UNKNOWN_SIZE;
+		}
+		
+		String size = value.substring(index + 1).trim();
+		return Ignore.defaultValue(() -> Long.parseLong(size), MediaConstants.UNKNOWN_SIZE);
+	}
+	
+	private static final Pair<Long, Version> sizeAndVersionOf(URI uri) throws Exception {
+		try(Response response = Web.peek(Request.of(uri).headers(HEADERS).HEAD())) {
+			long size;
+			
+			if(isSuccessfulResponse(response) && (size = Web.size(response)) >= 0L) {
+				return new Pair<>(size, response.version());
+			}
+		}
+		
+		// HEAD is either not allowed or does not report the size, request just a single byte instead
+		try(Response response = Web.peek(Request.of(uri).headers(HEADERS_PROBE).GET())) {
+			long size = MediaConstants.UNKNOWN_SIZE;
+			
+			if(isServerFailure(response)) {
+				throw new IOException("Server failure, HTTP status code: " + response.statusCode());
+			}
+			
+			if(response.statusCode() == 206) {
+				size = sizeOfContentRange(response);
+			} else if(isSuccessfulResponse(response)) {
+				size = Web.size(response);
+			}
+			
+			return new Pair<>(size, response.version());
+		}
 	}
 	
 	private static final Pair<Boolean, Long> sizeOrEstimatedSize(
@@ -181,49 +264,93 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		return response.statusCode() == 200;
 	}
 	
+	private static final DownloadConfiguration segmentConfiguration(long offset, long totalBytes) {
+		// Always create a new configuration, since segments may be downloaded concurrently
+		return DownloadConfiguration.builder()
+			.rangeRequest(new Range<>(0L, -1L))
+			.responseFilter(SegmentsDownloader::allowOnlySuccessfulResponse)
+			.rangeOutput(new Range<>(offset, -1L))
+			.totalBytes(totalBytes)
+			.build();
+	}
+	
+	// Detects the container of the given downloaded file and returns the file extensions of formats
+	// the file can be used as without any conversion. Only MPEG-TS and (fragmented) MP4 with the
+	// initialization segment are detected, otherwise an empty list is returned.
+	private static final List<String> containerExtensions(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(TS_PACKET_SIZE + 1);
+		
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+		}
+		
+		buffer.flip();
+		
+		if(buffer.remaining() > TS_PACKET_SIZE
+				&& buffer.get(0) == TS_SYNC_BYTE
+				&& buffer.get(TS_PACKET_SIZE) == TS_SYNC_BYTE) {
+			return EXTENSIONS_TS;
+		}
+		
+		if(buffer.remaining() >= 8) {
+			byte[] type = new byte[4];
+			buffer.position(4);
+			buffer.get(type);
+			
+			if("ftyp".equals(new String(type, StandardCharsets.US_ASCII))) {
+				return EXTENSIONS_MP4;
+			}
+		}
+		
+		return List.of();
+	}
+	
 	private static final List<? extends RemoteFile> listSegments(SegmentedMedia media) {
 		return ((SegmentedMedia) media).segments().segments().stream()
 					.map(RemoteFileSegment::new)
 					.collect(Collectors.toList());
 	}
 	
-	private final void waitMs(long ms, TimeUpdateTrackerBase tracker) {
+	// Waits the given time without polling. The wait is interrupted when the download is paused
+	// or stopped, the caller should then check the state.
+	private final void waitMs(long ms, RetryDownloadSimpleTracker tracker) {
 		if(ms <= 0L) {
 			return;
 		}
 		
-		// Update the tracker, so it is visible to the user
-		tracker.totalTimeMs(ms);
-		
-		// Optimization for low wait values
-		if(ms <= TIME_UPDATE_RESOLUTION_MS) {
-			try {
-				Thread.sleep(ms);
-			} catch(InterruptedException ex) {
-				// Ignore
-			}
-			
-			return; // No need to continue
-		}
+		// The waited time is updated periodically by the tracker itself
+		tracker.waitBegin(ms);
 		
-		for(long first  = System.nanoTime(),
-				 target = ms * 1000000L,
-				 time;
-				(time = System.nanoTime() - first) < target;) {
-			// Make the loop pausable and stoppable
-			if(!checkState()) break;
-			
-			// Update the tracker, so it is visible to the user
-			tracker.timeMs(time / 1000000L);
+		try {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
 			
-			try {
-				Thread.sleep(TIME_UPDATE_RESOLUTION_MS);
-			} catch(InterruptedException ex) {
-				break;
+			synchronized(lockWait) {
+				for(long remaining;
+						state.is(TaskStates.RUNNING) && (remaining = deadline - System.nanoTime()) > 0L;) {
+					TimeUnit.NANOSECONDS.timedWait(lockWait, remaining);
+				}
 			}
+		} catch(InterruptedException ex) {
+			// Stopped, the state will be checked by the caller
+		} finally {
+			tracker.waitEnd();
 		}
 	}
 	
+	private final void wakeUpWaiting() {
+		synchronized(lockWait) {
+			lockWait.notifyAll();
+		}
+	}
+	
+	// Returns the time to wait before the given retry attempt of a request to the given URI.
+	private final long retryDelayMs(URI uri, int attempt) {
+		return Math.max(
+			RetryScheduler.backoffMs(waitOnRetryMs, maxWaitOnRetryMs, attempt),
+			HostCircuitBreaker.of(uri).remainingMs()
+		);
+	}
+	
 	private final boolean checkState() {
 		// Wait for resume, if paused
 		if(isPaused()) {
@@ -234,10 +361,26 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		return state.is(TaskStates.RUNNING);
 	}
 	
+	private final void noConversion(Path input, Path output) throws IOException {
+		NIO.moveForce(input, output);
+		pipelineResult = DownloadPipelineResult.noConversion();
+	}
+	
 	private final void doConversion(List<ConversionMedia> inputs, ResolvedMedia output) {
 		pipelineResult = DownloadPipelineResult.doConversion(inputs, output);
 	}
 	
+	private final boolean canSkipConversion(List<Media> mediaSingles, List<Path> outputs) {
+		if(mediaSingles.size() != 1 || mediaSingles.get(0).metadata().isProtected()) {
+			return false;
+		}
+		
+		List<String> extensions = Ignore.call(() -> containerExtensions(outputs.get(0)));
+		
+		return extensions != null
+					&& configuration.outputFormat().fileExtensions().stream().anyMatch(extensions::contains);
+	}
+	
 	private final boolean computeTotalSize(
 			List<List<? extends RemoteFile>> segments, List<? extends RemoteFile> subtitles
 	) throws Exception {
@@ -245,6 +388,15 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 			.flatMap(List::stream)
 			.collect(Collectors.toList());
 		
+		// Use sizes known from recent downloads of the same files, if any
+		stream(flattenSegments, subtitles).forEach((file) -> {
+			long cachedSize;
+			if(file.size() <= 0L && (cachedSize = SizeProber.cachedSize(file.uri(), HEADERS)) > 0L) {
+				file.size(cachedSize);
+				file.estimatedSize(cachedSize);
+			}
+		});
+		
 		Pair<Boolean, Long> sizeResult = sizeOrEstimatedSize(flattenSegments, subtitles);
 		sizeSet(sizeResult.b);
 		
@@ -282,30 +434,81 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		
 		for(int i = 0; i < count; ++i) {
 			Path tempFile = dest.getParent().resolve(fileName + "." + i + ".part");
-			Ignore.callVoid(() -> NIO.deleteFile(tempFile));
+			
+			// Keep the already downloaded content, if it can be resumed
+			if(!SegmentsJournal.exists(tempFile)) {
+				Ignore.callVoid(() -> NIO.deleteFile(tempFile));
+			}
+			
 			tempFiles.add(tempFile);
 		}
 		
 		return tempFiles;
 	}
 	
-	private final boolean doDownload(InternalDownloader downloader, List<? extends RemoteFile> segments, Path output)
-			throws Exception {
-		Tracker previousTracker = null;
-		RetryDownloadSimpleTracker retryTracker = null;
-		long written = 0L, bytes;
-		
-		for(RemoteFile segment : segments) {
-			if(!checkState()) return false;
+	private final RetryDownloadSimpleTracker retryBegin() {
+		synchronized(lockRetry) {
+			if(retryTracker == null) {
+				retryTracker = new RetryDownloadSimpleTracker();
+				
+				// We have to translate the update event to the download update event since
+				// the registry is only for the download events.
+				retryTracker.addEventListener(TrackerEvent.UPDATE, (o) -> {
+					eventRegistry.call(DownloadEvent.UPDATE, this);
+				});
+			}
 			
-			Request request = Request.of(segment.uri()).headers(HEADERS).GET();
-			boolean lastAttempt = false;
-			boolean error = false;
-			Exception exception = null;
-			long downloadedBytes = 0L;
+			// Show the retry tracker only once, even if multiple segments are being retried
+			if(retryingCount++ == 0) {
+				previousTracker = trackerManager.tracker();
+				trackerManager.tracker(retryTracker);
+				retryTracker.startUpdating();
+			}
 			
+			return retryTracker;
+		}
+	}
+	
+	private final void retryEnd() {
+		synchronized(lockRetry) {
+			if(--retryingCount == 0) {
+				retryTracker.stopUpdating();
+				trackerManager.tracker(previousTracker);
+				previousTracker = null;
+			}
+		}
+	}
+	
+	private final <T extends InternalDownloader> T registerDownloader(T downloader, DownloadEventHandler handler) {
+		downloader.addEventListener(DownloadEvent.UPDATE, handler::onUpdate);
+		downloader.addEventListener(DownloadEvent.ERROR, handler::onError);
+		downloaders.add(downloader);
+		return downloader;
+	}
+	
+	private final InternalDownloader createDownloader(DownloadEventHandler handler) {
+		return registerDownloader(new FileDownloader(new TrackerManager()), handler);
+	}
+	
+	private final void disposeDownloader(InternalDownloader downloader) {
+		downloaders.remove(downloader);
+		Ignore.callVoid(downloader::close);
+	}
+	
+	// Returns the number of bytes written to the output at the given offset, or -1L, if stopped.
+	private final long downloadSegment(InternalDownloader downloader, DownloadEventHandler handler,
+			RemoteFile segment, Path output, long offset) throws Exception {
+		Request request = Request.of(segment.uri()).headers(HEADERS).GET();
+		HostCircuitBreaker breaker = HostCircuitBreaker.of(segment.uri());
+		RetryDownloadSimpleTracker tracker = null;
+		boolean lastAttempt = false;
+		boolean error = false;
+		Exception exception = null;
+		long downloadedBytes = 0L;
+		
+		try {
 			for(int i = 0; (error || downloadedBytes <= 0L) && i <= maxRetryAttempts; ++i) {
-				if(!checkState()) return false;
+				if(!checkState()) return -1L;
 				
 				lastAttempt = i == maxRetryAttempts;
 				handler.setPropagateError(lastAttempt);
@@ -314,38 +517,33 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 				
 				// Only display the text, if we're actually retrying
 				if(i > 0) {
-					if(retryTracker == null) {
-						retryTracker = new RetryDownloadSimpleTracker();
-						
-						// We have to translate the update event to the download update event since
-						// the registry is only for the download events.
-						retryTracker.addEventListener(TrackerEvent.UPDATE, (o) -> {
-							eventRegistry.call(DownloadEvent.UPDATE, this);
-						});
+					if(tracker == null) {
+						tracker = retryBegin();
 					}
 					
-					if(previousTracker == null) {
-						previousTracker = trackerManager.tracker();
-						trackerManager.tracker(retryTracker);
+					tracker.attempt(i);
+					waitMs(retryDelayMs(segment.uri(), i), tracker);
+					
+					if(!checkState()) return -1L;
+				} else if(breaker.isOpen()) {
+					// Do not send even the first request to a host that is currently failing
+					if(tracker == null) {
+						tracker = retryBegin();
 					}
 					
-					retryTracker.attempt(i);
-					int waitMs = (int) (waitOnRetryMs * Math.pow(i, 4.0 / 3.0));
-					waitMs(waitMs, retryTracker);
-					retryTracker.timeMs(-1L);
+					tracker.attempt(i);
+					waitMs(breaker.remainingMs(), tracker);
 					
-					if(!checkState()) return false;
+					if(!checkState()) return -1L;
 				}
 				
 				try {
-					Range<Long> rangeOutput = new Range<>(written, -1L);
-					DownloadConfiguration downloadConfiguration
-						= configurationBuilder.rangeOutput(rangeOutput).totalBytes(segment.size()).build();
+					DownloadConfiguration downloadConfiguration = segmentConfiguration(offset, segment.size());
 					downloadedBytes = downloader.start(request, output, downloadConfiguration);
 					error = downloader.isError() || downloadedBytes < 0L;
 				} catch(InterruptedException ex) {
 					// When stopped, immediately break from the loop
-					return false;
+					return -1L;
 				} catch(RejectedResponseException ex) {
 					// Retry, if the response is rejected by the filter
 					error = true;
@@ -368,6 +566,7 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 					if(size >= 0L) {
 						sync(segment, RemoteFile::size, size);
 						sizeAdd(size - segment.estimatedSize());
+						SizeProber.cache(segment.uri(), HEADERS, size);
 						
 						// Check whether the downloaded size equals the total size, if not
 						// just retry the download again.
@@ -378,31 +577,47 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 				}
 				
 				if(error) {
+					breaker.failure();
+					
 					if(downloadedBytes > 0L) {
 						downloadTracker.update(-downloadedBytes);
 					}
 					
 					downloadedBytes = -1L;
+				} else {
+					breaker.success();
 				}
 			}
-			
-			if(previousTracker != null) {
-				trackerManager.tracker(previousTracker);
-				previousTracker = null;
-			}
-			
-			// If even the last attempt failed, throw an exception since there is nothing we can do.
-			if(lastAttempt && downloadedBytes <= 0L) {
-				throw new IllegalStateException("The last attempt failed");
+		} finally {
+			if(tracker != null) {
+				retryEnd();
 			}
+		}
+		
+		// If even the last attempt failed, throw an exception since there is nothing we can do.
+		if(lastAttempt && downloadedBytes <= 0L) {
+			throw new IllegalStateException("The last attempt failed");
+		}
+		
+		if(exception != null) {
+			throw exception; // Forward the exception
+		}
+		
+		return Math.max(0L, downloader.writtenBytes());
+	}
+	
+	private final boolean doDownload(InternalDownloader downloader, DownloadEventHandler handler,
+			List<? extends RemoteFile> segments, Path output) throws Exception {
+		long written = 0L, bytes;
+		
+		for(RemoteFile segment : segments) {
+			if(!checkState()) return false;
 			
-			if(exception != null) {
-				throw exception; // Forward the exception
+			if((bytes = downloadSegment(downloader, handler, segment, output, written)) < 0L) {
+				return false;
 			}
 			
-			if((bytes = downloader.writtenBytes()) > 0L) {
-				written += bytes;
-			}
+			written += bytes;
 		}
 		
 		// Allow error propagating since there will be no more retry attempts
@@ -415,9 +630,10 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		return true;
 	}
 	
-	private final boolean doDownload(InternalDownloader downloader, Media media, Path output) throws Exception {
+	private final boolean doDownload(InternalDownloader downloader, DownloadEventHandler handler, Media media,
+			Path output) throws Exception {
 		return media.isSegmented()
-			? doDownload(downloader, listSegments((SegmentedMedia) media), output)
+			? doDownload(downloader, handler, listSegments((SegmentedMedia) media), output)
 			: doDownload(downloader, Request.of(media.uri()).headers(HEADERS).GET(), output);
 	}
 	
@@ -434,53 +650,116 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		));
 	}
 	
-	private final boolean download(List<List<? extends RemoteFile>> segments, List<Path> outputs) throws Exception {
-		Iterator<Path> output = outputs.iterator();
+	private final boolean downloadSubtitles(RemoteMedia subtitle, Path directory, String baseName)
+			throws Exception {
+		if(!checkState()) return false;
 		
-		for(List<? extends RemoteFile> list : segments) {
-			if(!doDownload(downloader, list, output.next())) {
+		SubtitlesMedia media = (SubtitlesMedia) subtitle.media;
+		Path path = subtitlesPath(media, baseName, directory);
+		DownloadEventHandler handler = new DownloadEventHandler(downloadTracker);
+		InternalDownloader downloader;
+		
+		if(media.isSegmented()) {
+			SubtitlesRetimeStrategy retimeStrategy = SubtitlesRetimeStrategies.of(media.metadata());
+			SegmentedSubtitlesDownloader subtitlesDownloader
+				= new SegmentedSubtitlesDownloader(new TrackerManager(), retimeStrategy);
+			subtitlesDownloader.setTracker(new DownloadTracker());
+			downloader = registerDownloader(subtitlesDownloader, handler);
+		} else {
+			downloader = createDownloader(handler);
+		}
+		
+		try {
+			if(!budget.acquire()) {
 				return false;
 			}
+			
+			try {
+				return doDownload(downloader, handler, media, path);
+			} finally {
+				budget.release();
+			}
+		} finally {
+			disposeDownloader(downloader);
+		}
+	}
+	
+	private final void abortPipelines() {
+		for(TrackDownloader trackDownloader : trackDownloaders) {
+			trackDownloader.abort(null);
 		}
 		
-		return true;
+		for(InternalDownloader downloader : downloaders) {
+			Ignore.callVoid(downloader::stop);
+		}
+		
+		if(budget != null) {
+			budget.close();
+		}
 	}
 	
-	private final boolean downloadSubtitles(List<RemoteMedia> subtitles, Path destination) throws Exception {
-		if(subtitles.isEmpty()) {
-			return true;
+	// Downloads all tracks and subtitles concurrently, each one as an independent pipeline.
+	// All pipelines share the same connection budget, so the total number of connections
+	// of this download is still at most `segmentConnections`.
+	private final boolean download(List<List<? extends RemoteFile>> segments, List<FileSegmentsHolder> holders,
+			List<Path> outputs, List<RemoteMedia> subtitles, Path destination) throws Exception {
+		List<Callable<Boolean>> tasks = new ArrayList<>(segments.size() + subtitles.size());
+		Iterator<FileSegmentsHolder> holder = holders.iterator();
+		Iterator<Path> output = outputs.iterator();
+		
+		for(List<? extends RemoteFile> list : segments) {
+			long fingerprint = SegmentsJournal.fingerprint(holder.next());
+			TrackDownloader trackDownloader = new TrackDownloader(list, output.next(), fingerprint, segmentConnections);
+			tasks.add(trackDownloader::download);
 		}
 		
 		Path directory = destination.getParent();
 		String baseName = Utils.OfPath.baseName(destination);
 		
 		for(RemoteMedia subtitle : subtitles) {
-			if(!checkState()) return false;
-			
-			SubtitlesMedia media = (SubtitlesMedia) subtitle.media;
-			Path path = subtitlesPath(media, baseName, directory);
-			InternalDownloader downloader = this.downloader;
+			tasks.add(() -> downloadSubtitles(subtitle, directory, baseName));
+		}
+		
+		if(tasks.isEmpty()) {
+			return checkState();
+		}
+		
+		ExecutorService executor = Threads.Pools.newFixed(tasks.size());
+		
+		try {
+			List<Future<Boolean>> futures = new ArrayList<>(tasks.size());
 			
-			if(media.isSegmented()) {
-				SubtitlesRetimeStrategy retimeStrategy = SubtitlesRetimeStrategies.of(media.metadata());
-				temporaryDownloader = new SegmentedSubtitlesDownloader(new TrackerManager(), retimeStrategy);
-				temporaryDownloader.addEventListener(DownloadEvent.UPDATE, handler::onUpdate);
-				temporaryDownloader.addEventListener(DownloadEvent.ERROR, handler::onError);
-				temporaryDownloader.setTracker((DownloadTracker) downloader.trackerManager().tracker());
-				downloader = temporaryDownloader;
+			for(Callable<Boolean> task : tasks) {
+				futures.add(executor.submit(task));
 			}
 			
-			if(!doDownload(downloader, media, path)) {
-				return false;
+			boolean success = true;
+			Exception exception = null;
+			
+			// Wait for all the pipelines, so that the conversion starts only when everything is done
+			for(Future<Boolean> future : futures) {
+				try {
+					if(!future.get()) {
+						success = false;
+					}
+				} catch(ExecutionException ex) {
+					if(exception == null) {
+						Throwable cause = ex.getCause();
+						exception = cause instanceof Exception ? (Exception) cause : ex;
+						// One pipeline failed, the whole download cannot succeed, stop the others
+						abortPipelines();
+					}
+				}
 			}
 			
-			if(temporaryDownloader != null) {
-				temporaryDownloader.stop();
-				temporaryDownloader = null;
+			if(exception != null) {
+				throw exception; // Forward the exception
 			}
+			
+			return success && checkState();
+		} finally {
+			executor.shutdownNow();
 		}
-		
-		return true;
 	}
 	
 	private final void stopTotalSizeComputation() throws Exception {
@@ -493,6 +772,12 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 			List<Path> outputs) throws Exception {
 		if(!checkState()) return false;
 		
+		// A single track already in the output container can just be moved, no need to run FFmpeg
+		if(canSkipConversion(mediaSingles, outputs)) {
+			noConversion(outputs.get(0), dest);
+			return true;
+		}
+		
 		double duration = segmentsHolders.stream()
 			.mapToDouble(FileSegmentsHolder::duration)
 			.filter((d) -> d > 0.0)
@@ -551,27 +836,16 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		downloadTracker = new DownloadTracker(size.get());
 		trackerManager.tracker(downloadTracker);
 		
-		if(handler == null) {
-			handler = new DownloadEventHandler(downloadTracker);
-		}
-		
-		if(downloader == null) {
-			downloader = new FileDownloader(new TrackerManager());
-			downloader.addEventListener(DownloadEvent.UPDATE, handler::onUpdate);
-			downloader.addEventListener(DownloadEvent.ERROR, handler::onError);
-		}
-		
-		configurationBuilder = DownloadConfiguration.builder()
-			.rangeRequest(new Range<>(0L, -1L))
-			.responseFilter(SegmentsDownloader::allowOnlySuccessfulResponse);
+		budget = new ConnectionBudget(segmentConnections);
 		
 		try {
 			List<Path> tempFiles = temporaryFiles(segments.size());
 			NIO.createFile(dest);
-			if(!download(segments, tempFiles)) return;
-			if(!downloadSubtitles(subtitles, dest)) return;
+			if(!download(segments, segmentsHolders, tempFiles, subtitles, dest)) return;
 			stopTotalSizeComputation();
 			if(!convert(mediaSingles, segmentsHolders, tempFiles)) return;
+			// All tracks are complete, nothing to resume anymore
+			tempFiles.forEach(SegmentsJournal::delete);
 			state.set(TaskStates.DONE);
 		} catch(Exception ex) {
 			exception = ex;
@@ -592,13 +866,18 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		state.unset(TaskStates.RUNNING);
 		state.unset(TaskStates.PAUSED);
 		lockPause.unlock();
+		wakeUpWaiting();
 		
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.stop();
 		}
 		
-		if(temporaryDownloader != null) {
-			temporaryDownloader.stop();
+		for(TrackDownloader trackDownloader : trackDownloaders) {
+			trackDownloader.abort(null);
+		}
+		
+		if(budget != null) {
+			budget.close();
 		}
 		
 		if(totalSizeComputer != null) {
@@ -618,20 +897,17 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 			return; // Nothing to do
 		}
 		
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.pause();
 		}
 		
-		if(temporaryDownloader != null) {
-			temporaryDownloader.pause();
-		}
-		
 		if(totalSizeComputer != null) {
 			totalSizeComputer.pause();
 		}
 		
 		state.unset(TaskStates.RUNNING);
 		state.set(TaskStates.PAUSED);
+		wakeUpWaiting();
 		eventRegistry.call(DownloadEvent.PAUSE, this);
 	}
 	
@@ -641,14 +917,10 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 			return; // Nothing to do
 		}
 		
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.resume();
 		}
 		
-		if(temporaryDownloader != null) {
-			temporaryDownloader.resume();
-		}
-		
 		if(totalSizeComputer != null) {
 			totalSizeComputer.resume();
 		}
@@ -661,13 +933,9 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 	
 	@Override
 	public void close() throws Exception {
-		if(downloader != null) {
+		for(InternalDownloader downloader : downloaders) {
 			downloader.close();
 		}
-		
-		if(temporaryDownloader != null) {
-			temporaryDownloader.close();
-		}
 	}
 	
 	@Override
@@ -793,44 +1061,304 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		}
 	}
 	
-	private final class RetryDownloadSimpleTracker extends SimpleTracker implements TimeUpdateTrackerBase {
+	// Downloads segments of a single track using multiple connections. Each connection downloads
+	// its segment to a separate slot file, the content of which is then appended to the output
+	// in the order of the segments. Therefore at most `parallelism` segments are in flight.
+	// The appended segments are recorded in the journal, so that the download can be resumed.
+	private final class TrackDownloader {
+		
+		private final List<? extends RemoteFile> segments;
+		private final Path output;
+		private final long fingerprint;
+		private final int parallelism;
+		private final Object lock = new Object();
+		private int nextSegment;
+		private int nextCommit;
+		private boolean aborted;
+		private Exception exception;
+		private SegmentSink sink;
+		
+		public TrackDownloader(List<? extends RemoteFile> segments, Path output, long fingerprint,
+				int parallelism) {
+			this.segments = Objects.requireNonNull(segments);
+			this.output = Objects.requireNonNull(output);
+			this.fingerprint = fingerprint;
+			this.parallelism = Math.max(1, Math.min(parallelism, segments.size()));
+		}
+		
+		// Slots are kept in the temporary directory, which is usually in memory or at least on a different
+		// disk than the output, so that the segments are not written twice to the same disk.
+		private final Path slotPath(int slot) throws IOException {
+			return Files.createTempFile(Utils.OfPath.baseName(output) + "-" + slot + "-", ".part");
+		}
+		
+		private final int claim() {
+			synchronized(lock) {
+				if(aborted || nextSegment >= segments.size()) {
+					return -1;
+				}
+				
+				return nextSegment++;
+			}
+		}
+		
+		private final boolean awaitTurn(int index) throws InterruptedException {
+			synchronized(lock) {
+				while(!aborted && nextCommit != index) {
+					lock.wait();
+				}
+				
+				return !aborted;
+			}
+		}
+		
+		private final void commit(Path slotFile, long bytes) throws IOException {
+			// Only the slot whose turn it is writes to the sink, no other synchronization is needed
+			sink.append(slotFile, bytes);
+			
+			synchronized(lock) {
+				++nextCommit;
+				lock.notifyAll();
+			}
+		}
+		
+		private final void runSlot(int slot) {
+			Path slotFile;
+			
+			try {
+				slotFile = slotPath(slot);
+			} catch(IOException ex) {
+				abort(ex);
+				return;
+			}
+			
+			DownloadEventHandler handler = new DownloadEventHandler(downloadTracker);
+			InternalDownloader downloader = createDownloader(handler);
+			
+			try {
+				while(budget.acquire()) {
+					int index;
+					long bytes;
+					
+					try {
+						if((index = claim()) < 0) {
+							break;
+						}
+						
+						bytes = downloadSegment(downloader, handler, segments.get(index), slotFile, 0L);
+					} finally {
+						// Do not hold the connection while waiting for the turn, other pipelines may use it
+						budget.release();
+					}
+					
+					if(bytes < 0L || !awaitTurn(index)) {
+						abort(null);
+						break;
+					}
+					
+					commit(slotFile, bytes);
+				}
+			} catch(Exception ex) {
+				abort(ex);
+			} finally {
+				disposeDownloader(downloader);
+				Ignore.callVoid(() -> NIO.deleteFile(slotFile));
+			}
+		}
+		
+		// Continues from the first incomplete segment. Returns false, if there is nothing to download.
+		private final boolean resume() throws IOException {
+			SegmentsJournal journal = sink.journal();
+			
+			if(journal.count() > segments.size()) {
+				journal.reset();
+			}
+			
+			int count = journal.count();
+			long end = journal.end();
+			
+			sink.resume();
+			
+			for(int i = 0; i < count; ++i) {
+				RemoteFile segment = segments.get(i);
+				long size = journal.size(i);
+				
+				if(sync(segment, RemoteFile::size) < 0L) {
+					sync(segment, RemoteFile::size, size);
+					sizeAdd(size - segment.estimatedSize());
+				}
+			}
+			
+			if(end > 0L) {
+				downloadTracker.update(end);
+			}
+			
+			nextSegment = count;
+			nextCommit = count;
+			return count < segments.size();
+		}
+		
+		public void abort(Exception ex) {
+			synchronized(lock) {
+				if(exception == null) {
+					exception = ex;
+				}
+				
+				aborted = true;
+				lock.notifyAll();
+			}
+		}
+		
+		public boolean download() throws Exception {
+			if(segments.isEmpty()) {
+				return checkState();
+			}
+			
+			ExecutorService executor = Threads.Pools.newFixed(parallelism);
+			trackDownloaders.add(this);
+			
+			try(SegmentSink sink = SegmentSink.open(output, fingerprint)) {
+				this.sink = sink;
+				
+				if(!resume()) {
+					return checkState(); // All segments have already been downloaded
+				}
+				
+				for(int i = 0; i < parallelism; ++i) {
+					final int slot = i;
+					executor.submit(() -> runSlot(slot));
+				}
+				
+				executor.shutdown();
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} finally {
+				executor.shutdownNow();
+				trackDownloaders.remove(this);
+			}
+			
+			synchronized(lock) {
+				if(exception != null) {
+					throw exception; // Forward the exception
+				}
+				
+				return !aborted && nextCommit == segments.size();
+			}
+		}
+	}
+	
+	// Limits the number of connections used by all pipelines of a single download at once.
+	private static final class ConnectionBudget {
+		
+		private final int capacity;
+		private int used;
+		private boolean closed;
+		
+		public ConnectionBudget(int capacity) {
+			this.capacity = Math.max(1, capacity);
+		}
+		
+		public synchronized boolean acquire() throws InterruptedException {
+			while(!closed && used >= capacity) {
+				wait();
+			}
+			
+			if(closed) {
+				return false;
+			}
+			
+			++used;
+			return true;
+		}
+		
+		public synchronized void release() {
+			--used;
+			notifyAll();
+		}
+		
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+	
+	// Since multiple segments may be retried at once, the tracker shows the most recent wait.
+	// The waited time is updated on the shared timer at a fixed rate, not by the waiting threads.
+	private final class RetryDownloadSimpleTracker extends SimpleTracker {
 		
-		private String progressText;
+		private volatile String progressText;
 		private int attempt;
-		private long timeMs = -1L;
+		private int waiting;
+		private long waitStart;
 		private long totalTimeMs;
+		private ScheduledFuture<?> updater;
 		
 		private final void updateText() {
-			String progressText;
+			synchronized(this) {
+				progressText = text();
+			}
 			
-			if(timeMs >= 0L) {
+			update();
+		}
+		
+		private final String text() {
+			if(waiting > 0) {
+				long timeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
 				String format = translation.getSingle("progress.retry_attempt_wait");
-				progressText = Utils.format(format, "attempt", attempt, "total_attempts", maxRetryAttempts,
-					"time", Utils.OfFormat.time(timeMs, TimeUnit.MILLISECONDS, true),
+				return Utils.format(format, "attempt", attempt, "total_attempts", maxRetryAttempts,
+					"time", Utils.OfFormat.time(Math.min(timeMs, totalTimeMs), TimeUnit.MILLISECONDS, true),
 					"total_time", Utils.OfFormat.time(totalTimeMs, TimeUnit.MILLISECONDS, true));
-			} else {
-				String format = translation.getSingle("progress.retry_attempt");
-				progressText = Utils.format(format, "attempt", attempt, "total_attempts", maxRetryAttempts);
 			}
 			
-			this.progressText = progressText;
-			update();
+			String format = translation.getSingle("progress.retry_attempt");
+			return Utils.format(format, "attempt", attempt, "total_attempts", maxRetryAttempts);
 		}
 		
 		public void attempt(int attempt) {
-			this.attempt = attempt;
+			synchronized(this) {
+				this.attempt = attempt;
+			}
+			
 			updateText();
 		}
 		
-		@Override
-		public void timeMs(long timeMs) {
-			this.timeMs = timeMs;
+		public void waitBegin(long totalTimeMs) {
+			synchronized(this) {
+				++waiting;
+				waitStart = System.nanoTime();
+				this.totalTimeMs = totalTimeMs;
+			}
+			
 			updateText();
 		}
 		
-		@Override
-		public void totalTimeMs(long totalTimeMs) {
-			this.totalTimeMs = totalTimeMs;
+		public void waitEnd() {
+			synchronized(this) {
+				--waiting;
+			}
+			
+			updateText();
+		}
+		
+		public synchronized void startUpdating() {
+			if(updater == null) {
+				updater = RetryScheduler.every(TIME_UPDATE_RESOLUTION_MS, this::updateIfWaiting);
+			}
+		}
+		
+		public synchronized void stopUpdating() {
+			if(updater != null) {
+				updater.cancel(false);
+				updater = null;
+			}
+		}
+		
+		private final void updateIfWaiting() {
+			synchronized(this) {
+				if(waiting <= 0) {
+					return; // Nothing changes
+				}
+			}
+			
 			updateText();
 		}
 		
@@ -850,10 +1378,101 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		}
 	}
 	
+	// Probes sizes of files using HEAD requests (or single byte GET requests, if HEAD is not allowed)
+	// in parallel on the shared probe executor. The first probe is done alone to obtain the HTTP
+	// version of the server. When HTTP/2 is used, the requests are multiplexed over a single connection,
+	// therefore more of them can be in flight at once. Otherwise only a few connections are used,
+	// so the server is not overloaded. Probing stops when the download is paused, so that no threads
+	// of the shared executor are held, and the remaining files are probed once it is resumed.
 	private final class AsynchronousTotalSizeComputer implements TotalSizeComputer {
 		
+		private final Set<RemoteFile> probed = ConcurrentHashMap.newKeySet();
+		// Hosts that responded without the size, their other files are most likely the same
+		private final Set<String> hostsWithoutSize = ConcurrentHashMap.newKeySet();
 		private Worker worker;
 		
+		private final Version probe(RemoteFile file) {
+			if(sync(file, RemoteFile::size) > 0L) {
+				probed.add(file);
+				return null; // Size already known
+			}
+			
+			long fileSize = SizeProber.cachedSize(file.uri(), HEADERS);
+			String host = Objects.toString(file.uri().getHost(), "");
+			HostCircuitBreaker breaker = HostCircuitBreaker.of(file.uri());
+			Version version = null;
+			
+			// Probing is only an optimization, a server that does not report the size is not asked again
+			for(int i = 0; fileSize < 0L && i < PROBE_MAX_ATTEMPTS && !hostsWithoutSize.contains(host); ++i) {
+				if(!isRunning()) {
+					return null; // Paused or stopped, probe the file again when resumed
+				}
+				
+				// Do not add to the load of a failing host
+				if(breaker.isOpen()) {
+					break;
+				}
+				
+				// Only exceptions and server failures count as failures of the host
+				Pair<Long, Version> pair = Ignore.call(() -> sizeAndVersionOf(file.uri()));
+				
+				if(pair == null) {
+					breaker.failure();
+					continue;
+				}
+				
+				breaker.success();
+				fileSize = pair.a;
+				version = pair.b;
+				
+				if(fileSize <= 0L) {
+					hostsWithoutSize.add(host);
+				}
+				
+				break; // The server responded, the size will not be different next time
+			}
+			
+			probed.add(file);
+			
+			if(fileSize > 0L) {
+				SizeProber.cache(file.uri(), HEADERS, fileSize);
+				
+				synchronized(file) {
+					// The size may have been obtained by the downloader in the meantime
+					if(file.size() > 0L) {
+						return version;
+					}
+					
+					file.size(fileSize);
+				}
+				
+				sizeAdd(fileSize - file.estimatedSize());
+			}
+			
+			return version;
+		}
+		
+		private final List<RemoteFile> notProbed(List<RemoteFile> files) {
+			return files.stream().filter((f) -> !probed.contains(f)).collect(Collectors.toList());
+		}
+		
+		private final void probeAll(List<RemoteFile> files) throws InterruptedException {
+			if(files.isEmpty() || !checkState()) {
+				return; // Do not continue
+			}
+			
+			Version version = probe(files.get(0));
+			int parallelism = version == Version.HTTP_2
+				? PROBE_PARALLELISM_MULTIPLEXED
+				: PROBE_PARALLELISM_CONNECTIONS;
+			
+			// Only this worker waits for the download to be resumed, the shared executor does not
+			for(List<RemoteFile> remaining = notProbed(files); !remaining.isEmpty() && checkState();
+					remaining = notProbed(remaining)) {
+				SizeProber.forEach(remaining, parallelism, SegmentsDownloader.this::isRunning, this::probe);
+			}
+		}
+		
 		@Override
 		public boolean compute(
 				List<? extends RemoteFile> segments,
@@ -861,40 +1480,18 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		) throws Exception {
 			worker = Worker.createWorker();
 			worker.submit(() -> {
-				Stream<RemoteFile> files = Stream.concat(
+				// Probe from the end, so that the probes do not compete with the download itself
+				List<RemoteFile> files = Stream.<RemoteFile>concat(
 					reversedStream(segments),
 					reversedStream(subtitles)
-				);
+				)
+					.filter((f) -> sync(f, RemoteFile::size) <= 0L)
+					.collect(Collectors.toList());
 				
 				try {
-					for(RemoteFile file : Utils.iterable(files.iterator())) {
-						if(!checkState()) {
-							// Exit the loop
-							break;
-						}
-						
-						long fileSize = sync(file, RemoteFile::size);
-						
-						if(fileSize <= 0L) {
-							for(int i = 0; fileSize < 0L && i <= maxRetryAttempts; ++i) {
-								Pair<Long, Version> pair = Ignore.call(() -> sizeAndVersionOf(file.uri(), HEADERS));
-								
-								if(pair != null) {
-									fileSize = pair.a;
-									
-									// Do not compute total size when HTTP/2 is not used
-									if(pair.b != Version.HTTP_2) {
-										return; // Do not continue
-									}
-								}
-							}
-							
-							if(fileSize > 0L) {
-								sync(file, RemoteFile::size, fileSize);
-								sizeAdd(fileSize - file.estimatedSize());
-							}
-						}
-					}
+					probeAll(files);
+				} catch(InterruptedException ex) {
+					// Stopped, ignore
 				} finally {
 					worker.stop();
 				}
@@ -925,12 +1522,6 @@ public final class SegmentsDownloader implements Download, DownloadResult {
 		}
 	}
 	
-	private static interface TimeUpdateTrackerBase {
-		
-		void timeMs(long timeMs);
-		void totalTimeMs(long totalTimeMs);
-	}
-	
 	private static interface RemoteFile {
 		
 		Object value();
@@ -0,0 +1,220 @@
+package sune.app.mediadown.downloader.wms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+
+import sune.app.mediadown.download.segment.FileSegment;
+import sune.app.mediadown.download.segment.FileSegmentsHolder;
+import sune.app.mediadown.util.NIO;
+import sune.app.mediadown.util.Utils;
+import sune.app.mediadown.util.Utils.Ignore;
+
+// An on-disk journal of segments of a single track that were completely written to the track's
+// output file. Since the segments are always written to the output in order, the journal is just
+// a header followed by fixed-size entries (offset and size) of the first N segments.
+final class SegmentsJournal implements AutoCloseable {
+	
+	private static final int MAGIC = 0x574D534A; // WMSJ
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+	private static final int ENTRY_SIZE = Long.BYTES * 2;
+	private static final String EXTENSION = ".journal";
+	
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	private final Path path;
+	private final long fingerprint;
+	private final FileChannel channel;
+	private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+	private long[] sizes;
+	private int count;
+	private long end;
+	
+	private SegmentsJournal(Path path, long fingerprint, FileChannel channel) {
+		this.path = path;
+		this.fingerprint = fingerprint;
+		this.channel = channel;
+		this.sizes = new long[16];
+	}
+	
+	private static final long hash(long hash, long value) {
+		for(int i = 0; i < Long.BYTES; ++i, value >>>= 8) {
+			hash = (hash ^ (value & 0xffL)) * FNV_PRIME;
+		}
+		
+		return hash;
+	}
+	
+	private static final long hash(long hash, byte[] bytes) {
+		for(byte b : bytes) {
+			hash = (hash ^ (b & 0xffL)) * FNV_PRIME;
+		}
+		
+		return hash;
+	}
+	
+	// Computes a fingerprint of the given segments holder. Only the stable parts of the segments
+	// are used, i.e. query strings of the URIs are ignored, since they usually contain tokens that
+	// change with every request of the media.
+	public static final long fingerprint(FileSegmentsHolder holder) {
+		List<? extends FileSegment> segments = holder.segments();
+		long hash = hash(FNV_OFFSET_BASIS, segments.size());
+		
+		for(FileSegment segment : segments) {
+			String path = Objects.toString(segment.uri().getRawPath(), "");
+			hash = hash(hash, path.getBytes(StandardCharsets.UTF_8));
+			hash = hash(hash, segment.size());
+		}
+		
+		return hash;
+	}
+	
+	public static final Path pathOf(Path output) {
+		return output.resolveSibling(Utils.OfPath.fileName(output) + EXTENSION);
+	}
+	
+	public static final boolean exists(Path output) {
+		return Files.exists(pathOf(output));
+	}
+	
+	public static final void delete(Path output) {
+		Ignore.callVoid(() -> NIO.deleteFile(pathOf(output)));
+	}
+	
+	// Opens the journal of the given output file. Entries are kept only if the journal was created
+	// for the same fingerprint and the data of all the entries are present in the output file,
+	// except the last entry, which is always dropped. Otherwise the journal is reset, so the track
+	// is downloaded from the beginning.
+	public static final SegmentsJournal open(Path output, long fingerprint) throws IOException {
+		Path path = pathOf(output);
+		FileChannel channel = FileChannel.open(
+			path,
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+		);
+		
+		SegmentsJournal journal = new SegmentsJournal(path, fingerprint, channel);
+		
+		try {
+			if(!journal.load(Files.exists(output) ? Files.size(output) : 0L)) {
+				journal.reset();
+			}
+		} catch(IOException ex) {
+			Ignore.callVoid(channel::close);
+			throw ex; // Forward the exception
+		}
+		
+		return journal;
+	}
+	
+	private final boolean load(long outputSize) throws IOException {
+		long journalSize = channel.size();
+		
+		if(journalSize < HEADER_SIZE) {
+			return false;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(journalSize, Integer.MAX_VALUE - 8));
+		
+		while(buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+			// Read the whole journal
+		}
+		
+		buffer.flip();
+		
+		if(buffer.getInt() != MAGIC
+				|| buffer.getInt() != VERSION
+				|| buffer.getLong() != fingerprint) {
+			return false;
+		}
+		
+		// Accept only a continuous sequence of entries whose data are in the output file. A partially
+		// written entry at the end (e.g. when the process was killed) is just ignored.
+		while(buffer.remaining() >= ENTRY_SIZE) {
+			long offset = buffer.getLong();
+			long size = buffer.getLong();
+			
+			if(offset != end || size < 0L || end + size > outputSize) {
+				break;
+			}
+			
+			add(size);
+		}
+		
+		// Only offsets and sizes are recorded, not the data, so the last segment is always downloaded
+		// again, in case its data were not completely written despite being recorded.
+		if(count > 0) {
+			end -= sizes[--count];
+		}
+		
+		// Drop everything after the last kept entry, so that new entries can be just appended
+		channel.truncate(HEADER_SIZE + (long) count * ENTRY_SIZE);
+		return true;
+	}
+	
+	private final void add(long size) {
+		if(count == sizes.length) {
+			long[] newSizes = new long[sizes.length * 2];
+			System.arraycopy(sizes, 0, newSizes, 0, count);
+			sizes = newSizes;
+		}
+		
+		sizes[count++] = size;
+		end += size;
+	}
+	
+	private final void write(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	public void reset() throws IOException {
+		count = 0;
+		end = 0L;
+		channel.truncate(0L);
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).flip();
+		write(header, 0L);
+	}
+	
+	// Records that the next segment of the given size was completely written to the output file
+	// at the current end offset.
+	public void append(long size) throws IOException {
+		entry.clear();
+		entry.putLong(end).putLong(size).flip();
+		write(entry, HEADER_SIZE + (long) count * ENTRY_SIZE);
+		add(size);
+	}
+	
+	public int count() {
+		return count;
+	}
+	
+	public long size(int index) {
+		Objects.checkIndex(index, count);
+		return sizes[index];
+	}
+	
+	// Gets the offset in the output file right after the last completed segment.
+	public long end() {
+		return end;
+	}
+	
+	public Path path() {
+		return path;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
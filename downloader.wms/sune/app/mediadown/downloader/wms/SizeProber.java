@@ -0,0 +1,187 @@
+package sune.app.mediadown.downloader.wms;
+
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import sune.app.mediadown.media.MediaConstants;
+
+// Probes sizes of remote files on a single bounded executor shared by all downloads and remembers
+// the obtained sizes for some time, so that queued downloads of the same files do not have to send
+// the same requests again.
+//
+// This class is deliberately duplicated in the SMF and WMS downloaders, since each plugin is
+// distributed as a separate jar and plugins cannot share classes. Both copies must be kept
+// identical, except for the package.
+final class SizeProber {
+	
+	private static final long TTL_MS = TimeUnit.MINUTES.toMillis(10L);
+	private static final int MAX_ENTRIES = 4096;
+	private static final int MAX_THREADS = 16;
+	private static final long KEEP_ALIVE_MS = 30000L;
+	
+	private static final Map<Key, Entry> cache = new ConcurrentHashMap<>();
+	private static final ThreadPoolExecutor executor;
+	
+	static {
+		executor = new ThreadPoolExecutor(
+			MAX_THREADS, MAX_THREADS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(), new DaemonThreadFactory()
+		);
+		// Do not keep any threads when nothing is being probed
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	// Forbid anyone to create an instance of this class
+	private SizeProber() {
+	}
+	
+	private static final void evict(long now) {
+		cache.values().removeIf((e) -> e.expiresAt <= now);
+		
+		// Still too many entries, remove some arbitrary ones
+		for(Iterator<Key> it = cache.keySet().iterator(); cache.size() > MAX_ENTRIES && it.hasNext();) {
+			it.next();
+			it.remove();
+		}
+	}
+	
+	public static final long cachedSize(URI uri, HttpHeaders headers) {
+		Entry entry = cache.get(new Key(uri, headers));
+		
+		if(entry == null) {
+			return MediaConstants.UNKNOWN_SIZE;
+		}
+		
+		if(entry.expiresAt <= System.currentTimeMillis()) {
+			cache.remove(new Key(uri, headers), entry);
+			return MediaConstants.UNKNOWN_SIZE;
+		}
+		
+		return entry.size;
+	}
+	
+	public static final void cache(URI uri, HttpHeaders headers, long size) {
+		if(size <= 0L) {
+			return; // Cache only known sizes
+		}
+		
+		long now = System.currentTimeMillis();
+		cache.put(new Key(uri, headers), new Entry(size, now + TTL_MS));
+		
+		if(cache.size() > MAX_ENTRIES) {
+			evict(now);
+		}
+	}
+	
+	// Returns the cached size, or obtains it using the given function and caches it.
+	public static final long size(URI uri, HttpHeaders headers, Callable<Long> function) throws Exception {
+		long size;
+		if((size = cachedSize(uri, headers)) > 0L) {
+			return size;
+		}
+		
+		size = function.call();
+		cache(uri, headers, size);
+		return size;
+	}
+	
+	// Runs the action for all the items on the shared executor, at most `parallelism` of them at once,
+	// and waits for all of them to finish. No more items are processed once `condition` is false.
+	public static final <T> void forEach(List<? extends T> items, int parallelism, BooleanSupplier condition,
+			Consumer<? super T> action) throws InterruptedException {
+		if(items.isEmpty()) {
+			return; // Nothing to do
+		}
+		
+		AtomicInteger next = new AtomicInteger();
+		int count = Math.max(1, Math.min(parallelism, items.size()));
+		List<Future<?>> futures = new ArrayList<>(count);
+		
+		try {
+			for(int i = 0; i < count; ++i) {
+				futures.add(executor.submit(() -> {
+					for(int index; condition.getAsBoolean() && (index = next.getAndIncrement()) < items.size();) {
+						action.accept(items.get(index));
+					}
+				}));
+			}
+			
+			for(Future<?> future : futures) {
+				try {
+					future.get();
+				} catch(ExecutionException ex) {
+					// Probing is only an optimization, ignore
+				}
+			}
+		} finally {
+			for(Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	private static final class Key {
+		
+		private final URI uri;
+		private final HttpHeaders headers;
+		
+		public Key(URI uri, HttpHeaders headers) {
+			this.uri = Objects.requireNonNull(uri);
+			this.headers = Objects.requireNonNull(headers);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(uri, headers);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj)
+				return true;
+			if(obj == null)
+				return false;
+			if(getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			return Objects.equals(uri, other.uri) && Objects.equals(headers, other.headers);
+		}
+	}
+	
+	private static final class Entry {
+		
+		private final long size;
+		private final long expiresAt;
+		
+		public Entry(long size, long expiresAt) {
+			this.size = size;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -31,7 +31,9 @@ public final class WMSDownloader implements Downloader {
 		return new SegmentsDownloader(
 			media, destination, configuration,
 			pluginConfiguration.intValue("maxRetryAttempts"),
-			pluginConfiguration.intValue("waitOnRetryMs")
+			pluginConfiguration.intValue("waitOnRetryMs"),
+			pluginConfiguration.intValue("maxWaitOnRetryMs"),
+			pluginConfiguration.intValue("segmentConnections")
 		);
 	}
 	
@@ -21,8 +21,10 @@ public final class WMSDownloaderPlugin extends PluginBase {
 	private static final String NAME = "wms";
 	
 	// Default values of configuration properties
-	private static final int DEFAULT_MAX_RETRY_ATTEMPTS = 500;
-	private static final int DEFAULT_WAIT_ON_RETRY_MS   = 250;
+	private static final int DEFAULT_MAX_RETRY_ATTEMPTS   = 500;
+	private static final int DEFAULT_WAIT_ON_RETRY_MS     = 250;
+	private static final int DEFAULT_MAX_WAIT_ON_RETRY_MS = 60000;
+	private static final int DEFAULT_SEGMENT_CONNECTIONS  = 4;
 	
 	private String translatedTitle;
 	private PluginConfiguration.Builder configuration;
@@ -39,6 +41,14 @@ public final class WMSDownloaderPlugin extends PluginBase {
 			.inGroup(ApplicationConfigurationAccessor.GROUP_DOWNLOAD)
 			.withDefaultValue(DEFAULT_WAIT_ON_RETRY_MS)
 			.withOrder(80));
+		builder.addProperty(ConfigurationProperty.ofInteger("maxWaitOnRetryMs")
+			.inGroup(ApplicationConfigurationAccessor.GROUP_DOWNLOAD)
+			.withDefaultValue(DEFAULT_MAX_WAIT_ON_RETRY_MS)
+			.withOrder(85));
+		builder.addProperty(ConfigurationProperty.ofInteger("segmentConnections")
+			.inGroup(ApplicationConfigurationAccessor.GROUP_DOWNLOAD)
+			.withDefaultValue(DEFAULT_SEGMENT_CONNECTIONS)
+			.withOrder(90));
 		
 		configuration = builder;
 	}
@@ -1,27 +1,39 @@
 package sune.app.mediadown.media_engine.ceskatelevize;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpConnectTimeoutException;
 import java.net.http.HttpHeaders;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.jsoup.nodes.Document;
@@ -53,6 +65,7 @@ import sune.app.mediadown.util.CheckedSupplier;
 import sune.app.mediadown.util.JSON;
 import sune.app.mediadown.util.JSON.JSONCollection;
 import sune.app.mediadown.util.JSON.JSONObject;
+import sune.app.mediadown.util.NIO;
 import sune.app.mediadown.util.Opt;
 import sune.app.mediadown.util.Regex;
 import sune.app.mediadown.util.Utils;
@@ -68,6 +81,8 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 	public static final String URL     = PLUGIN.getURL();
 	public static final Image  ICON    = PLUGIN.getIcon();
 	
+	private static final int MAX_CONCURRENT_JOBS = 4;
+	
 	private static final CT[] SUPPORTED_WEBS = {
 		CT_iVysilani.INSTANCE,
 		CT_Decko.INSTANCE,
@@ -90,6 +105,40 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		return UUID.randomUUID().toString();
 	}
 	
+	// Executes the jobs concurrently, but adds their media to the task in the order of the jobs.
+	private static final void executeJobs(List<ExtractJob> jobs, MediaSource source, ListTask<Media> task)
+			throws Exception {
+		if(jobs.size() <= 1) {
+			for(ExtractJob job : jobs) {
+				job.execute(source, task);
+			}
+			
+			return;
+		}
+		
+		ExecutorService executor = Threads.Pools.newFixed(Math.min(jobs.size(), MAX_CONCURRENT_JOBS));
+		List<Future<List<Media>>> results = new ArrayList<>(jobs.size());
+		
+		try {
+			for(ExtractJob job : jobs) {
+				results.add(executor.submit(() -> {
+					return ListTask.<Media>of((t) -> job.execute(source, t)).startAndGet();
+				}));
+			}
+			
+			for(Future<List<Media>> result : results) {
+				for(Media media : Common.result(result)) {
+					if(!task.add(media)) {
+						return; // Do not continue
+					}
+				}
+			}
+		} finally {
+			// Do not execute the remaining jobs, if stopped early
+			executor.shutdownNow();
+		}
+	}
+	
 	@Override
 	public ListTask<Program> getPrograms() throws Exception {
 		return ListTask.of((task) -> {
@@ -97,9 +146,9 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 				
 				@Override
 				protected void iteration(Integer category) throws Exception {
-					ListTask<Program> t = API.getPrograms(category);
-					t.forwardAdd(task);
-					t.startAndWait();
+					if(!API.getPrograms(task, category)) {
+						terminate();
+					}
 				}
 			}).iterate(API.categories());
 		});
@@ -109,10 +158,16 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 	public ListTask<Episode> getEpisodes(Program program) throws Exception {
 		return ListTask.of((task) -> {
 			// We need to get the IDEC of the given program first
-			WebMediaMetadata metadata = Common.retry(
-				() -> WebMediaMetadataExtractor.extract(HTML.from(program.uri()), true),
-				Objects::nonNull
-			);
+			WebMediaMetadata metadata = ProgramMetadataCache.get(program.uri());
+			
+			if(metadata == null) {
+				metadata = Common.retry(
+					() -> WebMediaMetadataExtractor.extract(HTML.from(program.uri()), true),
+					Objects::nonNull
+				);
+				ProgramMetadataCache.put(program.uri(), metadata);
+			}
+			
 			API.getEpisodes(task, program, metadata);
 		});
 	}
@@ -131,10 +186,7 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 			List<ExtractJob> jobs = new ArrayList<>();
 			MediaSource source = MediaSource.of(this);
 			ct.extractJobs(uri, HTML.from(uri), jobs);
-			
-			for(ExtractJob job : jobs) {
-				job.execute(source, task);
-			}
+			executeJobs(jobs, source, task);
 		});
 	}
 	
@@ -198,6 +250,16 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		
 		private Common() {}
 		
+		// Waits for the result and throws the exception of the computation as is, if any
+		public static final <T> T result(Future<T> future) throws Exception {
+			try {
+				return future.get();
+			} catch(ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				throw cause instanceof Exception ? (Exception) cause : ex;
+			}
+		}
+		
 		public static final <T> T retry(CheckedSupplier<T> action) throws Exception {
 			return retry(action, (v) -> true, MAX_RETRY_ATTEMPTS);
 		}
@@ -260,68 +322,57 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 			CATEGORY_ALL_SPIRITUALITY
 		};
 		
-		private static final String QUERY_GET_PROGRAMS_BY_CATEGORY = ""
-				+ "query GetCategoryById("
-				+ "  $limit: PaginationAmount!,"
-				+ "  $offset: Int!, $categoryId: String!,"
-				+ "  $order: OrderByDirection,"
-				+ "  $orderBy: CategoryOrderByType"
-				+ ") {\n"
-				+ "  showFindByGenre(\n"
-				+ "    limit: $limit\n"
-				+ "    offset: $offset\n"
-				+ "    categoryId: $categoryId\n"
-				+ "    order: $order\n"
-				+ "    orderBy: $orderBy\n"
-				+ "  ) {\n"
+		// Operations that are sent in batches, see OperationBatch.
+		private static final Operation OPERATION_GET_PROGRAMS_BY_CATEGORY = new Operation(
+			"showFindByGenre",
+			new String[] {
+				"limit", "PaginationAmount!",
+				"offset", "Int!",
+				"categoryId", "String!",
+				"order", "OrderByDirection",
+				"orderBy", "CategoryOrderByType"
+			},
+			""
 				+ "    items {\n"
 				+ "      ...ShowCardFragment\n"
 				+ "      __typename\n"
 				+ "    }\n"
 				+ "    totalCount\n"
-				+ "    __typename\n"
-				+ "  }\n"
-				+ "}\n"
-				+ "\n"
+				+ "    __typename\n",
+			""
 				+ "fragment ShowCardFragment on Show {\n"
 				+ "  id\n"
 				+ "  slug\n"
 				+ "  title\n"
 				+ "  __typename\n"
-				+ "}\n";
-		
-		private static final String QUERY_GET_EPISODES = ""
-				+ "query GetEpisodes("
-				+ "  $idec: String!,"
-				+ "  $seasonId: String,"
-				+ "  $limit: PaginationAmount!,"
-				+ "  $offset: Int!,"
-				+ "  $orderBy: EpisodeOrderByType!,"
-				+ "  $keyword: String"
-				+ ") {\n"
-				+ "  episodesPreviewFind(\n"
-				+ "    idec: $idec\n"
-				+ "    seasonId: $seasonId\n"
-				+ "    limit: $limit\n"
-				+ "    offset: $offset\n"
-				+ "    orderBy: $orderBy\n"
-				+ "    keyword: $keyword\n"
-				+ "  ) {\n"
+				+ "}\n"
+		);
+		
+		private static final Operation OPERATION_GET_EPISODES = new Operation(
+			"episodesPreviewFind",
+			new String[] {
+				"idec", "String!",
+				"seasonId", "String",
+				"limit", "PaginationAmount!",
+				"offset", "Int!",
+				"orderBy", "EpisodeOrderByType!",
+				"keyword", "String"
+			},
+			""
 				+ "    totalCount\n"
 				+ "    items {\n"
 				+ "      ...VideoCardFragment\n"
 				+ "      __typename\n"
 				+ "    }\n"
-				+ "    __typename\n"
-				+ "  }\n"
-				+ "}\n"
-				+ "\n"
+				+ "    __typename\n",
+			""
 				+ "fragment VideoCardFragment on EpisodePreview {\n"
 				+ "  id\n"
 				+ "  playable\n"
 				+ "  title\n"
 				+ "  __typename\n"
-				+ "}\n";
+				+ "}\n"
+		);
 		
 		private static final String QUERY_SEARCH_SHOWS = ""
 				+ "query SearchShows("
@@ -348,6 +399,12 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		
 		// API requests with 'limit' above 40 return "400 Bad request".
 		public static final int MAX_ITEMS_PER_PAGE = 40;
+		// Maximum number of pages of a single collection fetched at once
+		private static final int MAX_CONCURRENT_PAGES = 4;
+		// Maximum number of requests sent to the API at once, all the calls share the same host
+		private static final int MAX_CONCURRENT_REQUESTS = 8;
+		
+		private static final Semaphore permits = new Semaphore(MAX_CONCURRENT_REQUESTS);
 		
 		private static final String programSlugToURL(String slug) {
 			return URL_BASE_PROGRAM + slug + "/";
@@ -397,9 +454,15 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		
 		private static final JSONCollection doOperation(String operationName, String query, Object... variables)
 				throws Exception {
-			String body = createRequestBody(operationName, query, variables);
+			return doRequest(createRequestBody(operationName, query, variables));
+		}
+		
+		private static final JSONCollection doRequest(String body) throws Exception {
 			String contentType = "application/json";
 			HttpHeaders headers = Web.Headers.ofSingle("Referer", REFERER);
+			
+			permits.acquire();
+			
 			try(Response.OfStream response = Web.requestStream(
 					Request.of(Net.uri(URL)).headers(headers).POST(body, contentType)
 			)) {
@@ -411,63 +474,97 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 				}
 				
 				return JSON.read(response.stream());
+			} finally {
+				permits.release();
+			}
+		}
+		
+		private static final CollectionAPIResult fetchPage(PageFetcher fetcher, int offset) throws Exception {
+			return Common.retry(() -> fetcher.fetch(offset), (v) -> v.items() != null);
+		}
+		
+		private static final boolean consumeItems(CollectionAPIResult page, ItemConsumer consumer)
+				throws Exception {
+			for(JSONCollection item : page.items().collectionsIterable()) {
+				if(!consumer.accept(item)) {
+					return false;
+				}
 			}
+			
+			return true;
+		}
+		
+		// Fetches all the items of a paged collection. The first page tells the total count of items,
+		// the remaining pages are then fetched concurrently, but the items are still passed to the consumer
+		// in order. Returns false, if the consumer did not accept all the items.
+		private static final boolean fetchAll(PageFetcher fetcher, ItemConsumer consumer) throws Exception {
+			CollectionAPIResult first = fetchPage(fetcher, 0);
+			
+			if(!consumeItems(first, consumer)) {
+				return false;
+			}
+			
+			int total = first.total();
+			int numOfPages = (total - 1) / MAX_ITEMS_PER_PAGE; // Without the first one
+			
+			if(numOfPages <= 0) {
+				return true; // Only a single page
+			}
+			
+			ExecutorService executor = Threads.Pools.newFixed(Math.min(numOfPages, MAX_CONCURRENT_PAGES));
+			List<Future<CollectionAPIResult>> pages = new ArrayList<>(numOfPages);
+			
+			try {
+				for(int offset = MAX_ITEMS_PER_PAGE; offset < total; offset += MAX_ITEMS_PER_PAGE) {
+					final int off = offset;
+					pages.add(executor.submit(() -> fetchPage(fetcher, off)));
+				}
+				
+				for(Future<CollectionAPIResult> page : pages) {
+					if(!consumeItems(Common.result(page), consumer)) {
+						return false;
+					}
+				}
+			} finally {
+				// Do not fetch the remaining pages, if stopped early
+				executor.shutdownNow();
+			}
+			
+			return true;
 		}
 		
 		public static final CollectionAPIResult getProgramsWithCategory(int categoryId, int offset, int length)
 				throws Exception {
-			JSONCollection json = doOperation("GetCategoryById", QUERY_GET_PROGRAMS_BY_CATEGORY,
+			JSONCollection json = OperationBatch.call(OPERATION_GET_PROGRAMS_BY_CATEGORY,
 				"categoryId", String.valueOf(categoryId),
 				"limit", length,
 				"offset", offset,
 				"order", "asc",
 				"orderBy", "alphabet");
-			JSONCollection items = json.getCollection("data.showFindByGenre.items");
-			int total = json.getInt("data.showFindByGenre.totalCount");
+			JSONCollection items = json.getCollection("items");
+			int total = json.getInt("totalCount", 0);
 			return new CollectionAPIResult(items, total);
 		}
 		
 		public static final CollectionAPIResult getEpisodes(String idec, int offset, int length, String seasonId)
 				throws Exception {
-			JSONCollection json = doOperation("GetEpisodes", QUERY_GET_EPISODES,
+			JSONCollection json = OperationBatch.call(OPERATION_GET_EPISODES,
 				"idec", idec,
 				"limit", length,
 				"offset", offset,
 				"orderBy", "oldest",
 				"seasonId", seasonId);
-			JSONCollection items = json.getCollection("data.episodesPreviewFind.items");
-			int total = json.getInt("data.episodesPreviewFind.totalCount");
+			JSONCollection items = json.getCollection("items");
+			int total = json.getInt("totalCount", 0);
 			return new CollectionAPIResult(items, total);
 		}
 		
-		public static final ListTask<Program> getPrograms(int categoryId) throws Exception {
-			return ListTask.of((task) -> {
-				int offset = 0, total = -1;
-				CollectionAPIResult result;
-				
-				loop:
-				do {
-					final int off = offset;
-					result = Common.retry(
-						()  -> getProgramsWithCategory(categoryId, off, MAX_ITEMS_PER_PAGE),
-						(v) -> v.items() != null
-					);
-					
-					for(JSONCollection item : result.items().collectionsIterable()) {
-						Program program = parseProgram(item);
-						
-						if(!task.add(program)) {
-							break loop;
-						}
-					}
-					
-					if(total < 0) {
-						total = result.total();
-					}
-					
-					offset += MAX_ITEMS_PER_PAGE;
-				} while(offset < total);
-			});
+		// Returns false, if the task does not accept any more programs
+		public static final boolean getPrograms(ListTask<Program> task, int categoryId) throws Exception {
+			return fetchAll(
+				(offset) -> getProgramsWithCategory(categoryId, offset, MAX_ITEMS_PER_PAGE),
+				(item) -> task.add(parseProgram(item))
+			);
 		}
 		
 		public static final void getEpisodes(ListTask<Episode> task, Program program, WebMediaMetadata metadata)
@@ -475,51 +572,34 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 			String idec = metadata.idec();
 			List<String> seasons = metadata.seasons();
 			int seasonIndex = 0;
-			CollectionAPIResult result;
-			Set<URI> visited = null;
-			
-			if(!seasons.isEmpty()) {
-				// Only check episodes for the "All episodes" season when there
-				// are other seasons.
-				visited = new HashSet<>();
-			}
+			// Only check episodes for the "All episodes" season when there
+			// are other seasons.
+			Set<URI> visited = !seasons.isEmpty() ? new HashSet<>() : null;
 			
 			// Always check the "All episodes" season
 			seasons.add(null);
 			
 			for(String seasonId : seasons) {
-				int offset = 0, total = -1;
-				int episodeIndex = 0;
+				// Always use the "No season" season for the "All episodes" season.
+				int alteredSeasonIndex = seasonId == null ? -1 : seasonIndex;
+				int[] episodeIndex = { 0 };
 				
-				loop:
-				do {
-					final int off = offset;
-					result = Common.retry(
-						()  -> getEpisodes(idec, off, MAX_ITEMS_PER_PAGE, seasonId),
-						(v) -> v.items() != null
-					);
-					
-					// Always use the "No season" season for the "All episodes" season.
-					int alteredSeasonIndex = seasonId == null ? -1 : seasonIndex;
-					
-					for(JSONCollection item : result.items().collectionsIterable()) {
-						Episode episode = parseEpisode(program, item, episodeIndex++, alteredSeasonIndex);
+				boolean completed = fetchAll(
+					(offset) -> getEpisodes(idec, offset, MAX_ITEMS_PER_PAGE, seasonId),
+					(item) -> {
+						Episode episode = parseEpisode(program, item, episodeIndex[0]++, alteredSeasonIndex);
 						
 						if(visited != null && !visited.add(episode.uri())) {
-							continue; // Episode already visited
+							return true; // Episode already visited
 						}
 						
-						if(!task.add(episode)) {
-							break loop;
-						}
+						return task.add(episode);
 					}
-					
-					if(total < 0) {
-						total = result.total();
-					}
-					
-					offset += MAX_ITEMS_PER_PAGE;
-				} while(offset < total);
+				);
+				
+				if(!completed) {
+					return; // Do not continue
+				}
 				
 				++seasonIndex;
 			}
@@ -557,6 +637,228 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 			return CATEGORIES;
 		}
 		
+		// A single root field of a query that can be sent together with other fields in one document.
+		private static final class Operation {
+			
+			private final String field;
+			private final Map<String, String> parameterTypes;
+			private final String selection;
+			private final String fragments;
+			
+			public Operation(String field, String[] parameters, String selection, String fragments) {
+				this.field = Objects.requireNonNull(field);
+				this.parameterTypes = new HashMap<>();
+				this.selection = Objects.requireNonNull(selection);
+				this.fragments = Objects.requireNonNull(fragments);
+				
+				for(int i = 0, l = parameters.length; i < l; i += 2) {
+					parameterTypes.put(parameters[i], parameters[i + 1]);
+				}
+			}
+			
+			// Appends the field under the given alias, the variables are suffixed with the index, so that
+			// they do not clash with the variables of other fields in the same document.
+			public void append(StringBuilder declarations, StringBuilder fields, List<Object> variables,
+					int index, Object... args) {
+				if((args.length & 1) != 0)
+					throw new IllegalArgumentException("Arguments length must be even.");
+				
+				String alias = OperationBatch.alias(index);
+				StringBuilder arguments = new StringBuilder();
+				
+				for(int i = 0, l = args.length; i < l; i += 2) {
+					String name = (String) args[i];
+					Object value = args[i + 1];
+					
+					if(value == null) {
+						continue; // Do not permit null values
+					}
+					
+					String type = parameterTypes.get(name);
+					
+					if(type == null) {
+						throw new IllegalArgumentException("Unknown argument: " + name);
+					}
+					
+					String variable = name + '_' + index;
+					
+					if(declarations.length() > 0) declarations.append(", ");
+					declarations.append('$').append(variable).append(": ").append(type);
+					
+					if(arguments.length() > 0) arguments.append(", ");
+					arguments.append(name).append(": $").append(variable);
+					
+					variables.add(variable);
+					variables.add(value);
+				}
+				
+				fields.append("  ").append(alias).append(": ").append(field)
+					  .append('(').append(arguments).append(") {\n")
+					  .append(selection)
+					  .append("  }\n");
+			}
+			
+			public String fragments() {
+				return fragments;
+			}
+		}
+		
+		// Operations issued at about the same time, e.g. the first pages of all the categories, are sent
+		// in a single request. When no other batch is being sent, an operation is sent right away. Otherwise
+		// the first caller of a batch waits a short while for other operations, then all of them are sent
+		// as aliased fields of one query document and the results are distributed. Batches are sent
+		// on separate threads, so that an interrupted caller does not make the whole batch fail.
+		private static final class OperationBatch {
+			
+			private static final String OPERATION_NAME = "Batch";
+			private static final long WINDOW_MS = 10L;
+			private static final int MAX_OPERATIONS = 10;
+			
+			private static final Object lock = new Object();
+			private static final ExecutorService sender = Executors.newCachedThreadPool((r) -> {
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			});
+			private static OperationBatch current;
+			private static int sending;
+			
+			private final List<Operation> operations = new ArrayList<>(MAX_OPERATIONS);
+			private final List<Object[]> arguments = new ArrayList<>(MAX_OPERATIONS);
+			private final CompletableFuture<JSONCollection> result = new CompletableFuture<>();
+			
+			private OperationBatch() {
+			}
+			
+			private static final String alias(int index) {
+				return "r" + index;
+			}
+			
+			// Returns the data of the field of the given operation, or an empty collection, if the server
+			// did not return any.
+			public static final JSONCollection call(Operation operation, Object... args) throws Exception {
+				OperationBatch batch;
+				int index;
+				boolean isSender = false;
+				boolean doWait = false;
+				
+				synchronized(lock) {
+					if(current == null) {
+						current = new OperationBatch();
+						isSender = true;
+						doWait = sending > 0;
+						++sending;
+					}
+					
+					batch = current;
+					index = batch.add(operation, args);
+					
+					if((isSender && !doWait) || index + 1 >= MAX_OPERATIONS) {
+						current = null; // Sent right away or full, the next operation starts a new batch
+					}
+				}
+				
+				if(isSender) {
+					if(doWait) {
+						batch.awaitFull();
+						
+						synchronized(lock) {
+							if(current == batch) {
+								current = null;
+							}
+						}
+					}
+					
+					sender.execute(batch::send);
+				}
+				
+				return batch.result(index);
+			}
+			
+			private final synchronized int add(Operation operation, Object[] args) {
+				operations.add(operation);
+				arguments.add(args);
+				
+				if(operations.size() >= MAX_OPERATIONS) {
+					notifyAll();
+				}
+				
+				return operations.size() - 1;
+			}
+			
+			private final synchronized void awaitFull() {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW_MS);
+				long remaining;
+				
+				try {
+					while(operations.size() < MAX_OPERATIONS
+							&& (remaining = deadline - System.nanoTime()) > 0L) {
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				} catch(InterruptedException ex) {
+					// Other callers depend on this batch, send it anyway. This caller then fails
+					// when waiting for its result.
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			private final synchronized String requestBody() {
+				StringBuilder declarations = new StringBuilder();
+				StringBuilder fields = new StringBuilder();
+				List<Object> variables = new ArrayList<>();
+				Set<String> fragments = new LinkedHashSet<>();
+				
+				for(int i = 0, l = operations.size(); i < l; ++i) {
+					Operation operation = operations.get(i);
+					operation.append(declarations, fields, variables, i, arguments.get(i));
+					fragments.add(operation.fragments());
+				}
+				
+				StringBuilder query = new StringBuilder();
+				query.append("query ").append(OPERATION_NAME);
+				
+				if(declarations.length() > 0) {
+					query.append('(').append(declarations).append(')');
+				}
+				
+				query.append(" {\n").append(fields).append("}\n");
+				fragments.forEach((f) -> query.append('\n').append(f));
+				
+				return createRequestBody(OPERATION_NAME, query.toString(), variables.toArray());
+			}
+			
+			private final void send() {
+				try {
+					result.complete(doRequest(requestBody()));
+				} catch(Exception ex) {
+					result.completeExceptionally(ex);
+				} finally {
+					synchronized(lock) {
+						--sending;
+					}
+				}
+			}
+			
+			private final JSONCollection result(int index) throws Exception {
+				JSONCollection json = Common.result(result);
+				JSONCollection data = json.getCollection("data." + alias(index));
+				return data != null ? data : JSONCollection.empty();
+			}
+		}
+		
+		@FunctionalInterface
+		private static interface PageFetcher {
+			
+			CollectionAPIResult fetch(int offset) throws Exception;
+		}
+		
+		@FunctionalInterface
+		private static interface ItemConsumer {
+			
+			// Returns false, if no more items should be passed
+			boolean accept(JSONCollection item) throws Exception;
+		}
+		
 		static final class CollectionAPIResult {
 			
 			private final JSONCollection items;
@@ -579,7 +881,14 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 	
 	private static abstract class ConcurrentLoop<T> {
 		
-		protected final ExecutorService executor = Threads.Pools.newWorkStealing();
+		private static final int MAX_CONCURRENT_ITERATIONS = 8;
+		
+		// Every iteration pages through the GraphQL API, so one limit covers all the loops. Listings
+		// started at the same time (e.g. by a refresh) are served fairly in the order of arrival.
+		private static final Semaphore permits = new Semaphore(MAX_CONCURRENT_ITERATIONS, true);
+		
+		protected final ExecutorService executor = Threads.Pools.newFixed(MAX_CONCURRENT_ITERATIONS);
+		protected final AtomicBoolean terminated = new AtomicBoolean();
 		
 		protected abstract void iteration(T value) throws Exception;
 		
@@ -590,7 +899,17 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		}
 		
 		protected final void submit(T value) {
-			executor.submit(Utils.callable(() -> iteration(value)));
+			executor.submit(Utils.callable(() -> {
+				permits.acquire();
+				
+				try {
+					if(!terminated.get()) {
+						iteration(value);
+					}
+				} finally {
+					permits.release();
+				}
+			}));
 		}
 		
 		@SuppressWarnings({ "unchecked", "unused" })
@@ -599,6 +918,14 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 				submit(value);
 			await();
 		}
+		
+		// Stops the loop, e.g. when the task does not accept any more items
+		public void terminate() throws Exception {
+			if(!terminated.compareAndSet(false, true))
+				return;
+			
+			executor.shutdownNow();
+		}
 	}
 	
 	private static abstract class IntConcurrentLoop extends ConcurrentLoop<Integer> {
@@ -610,6 +937,99 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		}
 	}
 	
+	// Final URIs of the playlists, they are resolved for every media of a page, often repeatedly.
+	// The redirects are only cached for a short time, since they may point to a specific server.
+	private static final class Redirects {
+		
+		private static final long TTL_MS = TimeUnit.SECONDS.toMillis(60L);
+		private static final int MAX_ENTRIES = 256;
+		private static final int MAX_CONCURRENT_REQUESTS = 4;
+		
+		private static final Map<URI, Redirect> cache = new ConcurrentHashMap<>();
+		
+		private Redirects() {}
+		
+		private static final void evict() {
+			long now = System.currentTimeMillis();
+			cache.values().removeIf((r) -> r.isExpired(now));
+			
+			if(cache.size() >= MAX_ENTRIES) {
+				cache.clear(); // Too many fresh entries, just start over
+			}
+		}
+		
+		public static final URI resolve(URI uri) throws Exception {
+			Redirect redirect;
+			if((redirect = cache.get(uri)) != null
+					&& !redirect.isExpired(System.currentTimeMillis())) {
+				return redirect.uri();
+			}
+			
+			URI finalUri;
+			try(Response response = Web.peek(Request.of(uri).HEAD())) {
+				finalUri = response.uri();
+			}
+			
+			if(cache.size() >= MAX_ENTRIES) {
+				evict();
+			}
+			
+			cache.put(uri, new Redirect(finalUri));
+			return finalUri;
+		}
+		
+		// Resolves the URIs concurrently, the final URIs are in the same order as the given ones.
+		public static final List<URI> resolveAll(List<URI> uris) throws Exception {
+			if(uris.size() <= 1) {
+				List<URI> finalUris = new ArrayList<>(uris.size());
+				
+				for(URI uri : uris) {
+					finalUris.add(resolve(uri));
+				}
+				
+				return finalUris;
+			}
+			
+			ExecutorService executor = Threads.Pools.newFixed(Math.min(uris.size(), MAX_CONCURRENT_REQUESTS));
+			List<Future<URI>> results = new ArrayList<>(uris.size());
+			
+			try {
+				for(URI uri : uris) {
+					results.add(executor.submit(() -> resolve(uri)));
+				}
+				
+				List<URI> finalUris = new ArrayList<>(uris.size());
+				
+				for(Future<URI> result : results) {
+					finalUris.add(Common.result(result));
+				}
+				
+				return finalUris;
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		
+		private static final class Redirect {
+			
+			private final URI uri;
+			private final long expires;
+			
+			public Redirect(URI uri) {
+				this.uri = Objects.requireNonNull(uri);
+				this.expires = System.currentTimeMillis() + TTL_MS;
+			}
+			
+			public URI uri() {
+				return uri;
+			}
+			
+			public boolean isExpired(long now) {
+				return now >= expires;
+			}
+		}
+	}
+	
 	private static interface ExtractJob {
 		
 		void execute(MediaSource source, ListTask<Media> task) throws Exception;
@@ -642,13 +1062,14 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 				title = playlist.title();
 			}
 			
-			for(VOD.Playlist.Stream stream : playlist.streams()) {
-				URI finalUri;
-				
-				try(Response response = Web.peek(Request.of(stream.uri()).HEAD())) {
-					finalUri = response.uri();
-				}
-				
+			List<VOD.Playlist.Stream> streams = playlist.streams();
+			List<URI> finalUris = Redirects.resolveAll(
+				streams.stream().map(VOD.Playlist.Stream::uri).collect(Collectors.toList())
+			);
+			
+			for(int i = 0, l = streams.size(); i < l; ++i) {
+				VOD.Playlist.Stream stream = streams.get(i);
+				URI finalUri = finalUris.get(i);
 				List<Media.Builder<?, ?>> media = MediaUtils.createMediaBuilders(
 					source, finalUri, uri, title, MediaLanguage.UNKNOWN, MediaMetadata.empty()
 				);
@@ -740,6 +1161,162 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		}
 	}
 	
+	// Remembers the IDEC and the seasons of programs across runs, so that listing episodes does not
+	// require downloading and parsing the program's page every time. Entries expire after a day,
+	// so that newly added seasons are eventually found.
+	private static final class ProgramMetadataCache {
+		
+		private static final int VERSION = 1;
+		private static final long TTL_MS = TimeUnit.DAYS.toMillis(1L);
+		private static final int MAX_ENTRIES = 1000;
+		
+		private static Map<String, Item> items;
+		
+		// Forbid anyone to create an instance of this class
+		private ProgramMetadataCache() {
+		}
+		
+		private static final Path path() {
+			return NIO.localPath("resources/config/" + PLUGIN.getContext().getPlugin().instance().name() + ".programs.json");
+		}
+		
+		private static final Map<String, Item> items() {
+			if(items == null) {
+				items = new LinkedHashMap<>();
+				Ignore.callVoid(ProgramMetadataCache::load);
+			}
+			
+			return items;
+		}
+		
+		private static final void load() throws IOException {
+			Path path = path();
+			
+			if(!Files.exists(path)) {
+				return; // Nothing to load
+			}
+			
+			JSONCollection json = JSON.read(Files.readString(path));
+			
+			if(json.getInt("version", 0) != VERSION) {
+				return; // Incompatible, will be replaced
+			}
+			
+			JSONCollection programs = json.getCollection("programs");
+			
+			if(programs == null) {
+				return; // Nothing to load
+			}
+			
+			for(JSONCollection item : programs.collectionsIterable()) {
+				String uri = item.getString("uri");
+				String idec = item.getString("idec");
+				JSONCollection seasonsArray = item.getCollection("seasons");
+				
+				if(uri == null || idec == null || seasonsArray == null) {
+					continue; // Invalid item, skip it
+				}
+				
+				List<String> seasons = new ArrayList<>();
+				
+				for(JSONCollection season : seasonsArray.collectionsIterable()) {
+					String id = season.getString("id");
+					
+					if(id != null) {
+						seasons.add(id);
+					}
+				}
+				
+				items.put(uri, new Item(idec, seasons, item.getLong("updated", 0L)));
+			}
+		}
+		
+		private static final void save() throws IOException {
+			JSONCollection array = JSONCollection.emptyArray();
+			
+			for(Entry<String, Item> entry : items.entrySet()) {
+				array.add(entry.getValue().toJSON(entry.getKey()));
+			}
+			
+			JSONCollection json = JSONCollection.ofObject(
+				"version", JSONObject.ofInt(VERSION),
+				"programs", array
+			);
+			
+			NIO.save(path(), json.toString(true));
+		}
+		
+		public static final synchronized WebMediaMetadata get(URI uri) {
+			Item item;
+			if((item = items().get(uri.toString())) == null || item.isExpired()) {
+				return null;
+			}
+			
+			// The seasons are modified by the caller, always return a copy
+			return new WebMediaMetadata(item.idec(), new ArrayList<>(item.seasons()));
+		}
+		
+		public static final synchronized void put(URI uri, WebMediaMetadata metadata) {
+			if(metadata == null || metadata.idec() == null || metadata.seasons() == null) {
+				return; // Nothing to cache, the metadata will be extracted again next time
+			}
+			
+			Map<String, Item> items = items();
+			String key = uri.toString();
+			
+			// Keep the most recently updated programs last, so that the oldest ones are removed first
+			items.remove(key);
+			items.put(key, new Item(metadata.idec(), new ArrayList<>(metadata.seasons()), System.currentTimeMillis()));
+			
+			for(Iterator<String> it = items.keySet().iterator(); items.size() > MAX_ENTRIES && it.hasNext();) {
+				it.next();
+				it.remove();
+			}
+			
+			Ignore.callVoid(ProgramMetadataCache::save);
+		}
+		
+		private static final class Item {
+			
+			private final String idec;
+			private final List<String> seasons;
+			private final long updated;
+			
+			public Item(String idec, List<String> seasons, long updated) {
+				this.idec = Objects.requireNonNull(idec);
+				this.seasons = Objects.requireNonNull(seasons);
+				this.updated = updated;
+			}
+			
+			public JSONCollection toJSON(String uri) {
+				JSONCollection array = JSONCollection.emptyArray();
+				
+				for(String season : seasons) {
+					array.add(JSONCollection.ofObject("id", JSONObject.ofString(season)));
+				}
+				
+				return JSONCollection.ofObject(
+					"uri", JSONObject.ofString(uri),
+					"idec", JSONObject.ofString(idec),
+					"seasons", array,
+					"updated", JSONObject.ofLong(updated)
+				);
+			}
+			
+			public boolean isExpired() {
+				return System.currentTimeMillis() - updated >= TTL_MS;
+			}
+			
+			public String idec() {
+				return idec;
+			}
+			
+			public List<String> seasons() {
+				return seasons;
+			}
+		}
+	}
+	
 	// Note: Based on https://player.ceskatelevize.cz/_next/static/chunks/695-cede098ec19ef364.js
 	private static enum VOD {
 		INSTANCE;
@@ -1052,7 +1629,21 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 	
 	private static final class Episodes {
 		
-		private static Map<String, List<String>> cache;
+		private static final int MAX_CACHED_SEASONS = 32;
+		private static final long TTL_MS = TimeUnit.MINUTES.toMillis(10L);
+		// An episode missing in a younger index is not a reason to rebuild it
+		private static final long MIN_REBUILD_AGE_MS = TimeUnit.SECONDS.toMillis(30L);
+		
+		// The least recently used seasons are evicted first, access must be synchronized
+		private static final Map<String, SeasonIndex> cache = new LinkedHashMap<>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SeasonIndex> eldest) {
+				return size() > MAX_CACHED_SEASONS;
+			}
+		};
 		
 		private Episodes() {}
 		
@@ -1060,175 +1651,114 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 			return programIDEC + ':' + seasonId;
 		}
 		
-		public static final int indexOf(String episodeId, String programIDEC, String seasonId) throws Exception {
-			int offset = 0, total = -1, ctr = 0, index = -1;
-			
-			// Only create the cache if needed
-			if(cache == null) {
-				cache = new HashMap<>();
-			}
+		private static final SeasonIndex seasonIndex(String key, String programIDEC, String seasonId,
+				SeasonIndex stale) {
+			SeasonIndex index;
 			
-			String key = programSeasonKey(programIDEC, seasonId);
-			List<String> episodes = cache.computeIfAbsent(key, (k) -> new ArrayList<>());
-			
-			// Look through cached episodes first
-			if(!episodes.isEmpty()) {
-				int i = episodes.indexOf(episodeId);
-				if(i != -1) return i;
-				offset = episodes.size();
-			}
-			
-			// Iteratively get as many episodes as needed in chunks and find the needed one
-			API.CollectionAPIResult result;
-			do {
-				final int off = offset;
-				result = Common.retry(
-					()  -> API.getEpisodes(programIDEC, off, API.MAX_ITEMS_PER_PAGE, seasonId),
-					(v) -> v.items() != null
-				);
-				
-				JSONCollection items = result.items();
-				ctr = 0;
+			synchronized(cache) {
+				index = cache.get(key);
 				
-				for(JSONCollection item : items.collectionsIterable()) {
-					String id = item.getString("id", "");
-					episodes.add(id); // Put to the cache
-					if(id.equals(episodeId)) index = ctr; // Do not break from the loop due to caching
-					++ctr;
+				if(index == null || index == stale || index.isExpired()) {
+					// Concurrent lookups of the same season wait for this index to be built
+					index = new SeasonIndex(programIDEC, seasonId);
+					cache.put(key, index);
 				}
-				
-				if(total < 0) {
-					total = result.total();
-				}
-				
-				offset += API.MAX_ITEMS_PER_PAGE;
-			} while(index < 0 && offset < total);
+			}
 			
 			return index;
 		}
-	}
-	
-	private static final class NextJS {
-		
-		private static final int FLAG_ESCAPED = 1 << 0;
-		private static final int FLAG_QUOTED_SINGLE = 1 << 1;
-		private static final int FLAG_QUOTED_DOUBLE = 1 << 2;
-		private static final int FLAG_QUOTED = FLAG_QUOTED_SINGLE | FLAG_QUOTED_DOUBLE;
-		private static final Regex REGEX_OBJECT_NAME = Regex.of("(?:\"([^\"]+)\":[{\\[]|\\[\\{|,[{\\[])$");
-		
-		private final String json;
 		
-		private NextJS(String json) {
-			this.json = Objects.requireNonNull(json);
+		public static final int indexOf(String episodeId, String programIDEC, String seasonId) throws Exception {
+			String key = programSeasonKey(programIDEC, seasonId);
+			SeasonIndex index = seasonIndex(key, programIDEC, seasonId, null);
+			int position = index.positionOf(episodeId);
+			
+			if(position < 0 && index.age() >= MIN_REBUILD_AGE_MS) {
+				// The episode may have been published after the index was built
+				position = seasonIndex(key, programIDEC, seasonId, index).positionOf(episodeId);
+			}
+			
+			return position;
 		}
 		
-		// Assuming the start position is not inside a quoted string.
-		private static final int startOfCollection(String string, int start) {
-			for(int i = start, countObject = 0, countArray = 0, flags = 0, c; i >= 0; --i) {
-				switch(c = string.charAt(i)) {
-					case '\"':
-					case '\'': {
-						int run = 0;
-						for(; i - 1 >= 0 && string.charAt(i - 1) == '\\'; ++run, --i);
-						if((run & 1) == 1) continue; // Odd number of backslashes, thus escaped.
+		// Positions of all the episodes of a season. The index is built by the first lookup, the pages
+		// of the season are fetched in parallel.
+		private static final class SeasonIndex {
+			
+			private final String programIDEC;
+			private final String seasonId;
+			private final long created = System.currentTimeMillis();
+			private Map<String, Integer> positions;
+			private Exception exception;
+			
+			public SeasonIndex(String programIDEC, String seasonId) {
+				this.programIDEC = programIDEC;
+				this.seasonId = seasonId;
+			}
+			
+			private final Map<String, Integer> build() throws Exception {
+				Map<String, Integer> positions = new HashMap<>();
+				int[] position = { 0 };
+				
+				API.fetchAll(
+					(offset) -> API.getEpisodes(programIDEC, offset, API.MAX_ITEMS_PER_PAGE, seasonId),
+					(item) -> {
+						positions.putIfAbsent(item.getString("id", ""), position[0]++);
+						return true;
+					}
+				);
+				
+				return positions;
+			}
+			
+			public synchronized int positionOf(String episodeId) throws Exception {
+				if(positions == null) {
+					if(exception != null) {
+						throw exception;
+					}
+					
+					try {
+						positions = build();
+					} catch(Exception ex) {
+						exception = ex;
 						
-						switch(c) {
-							case '\"': if((flags & FLAG_QUOTED_SINGLE) == 0) flags ^= FLAG_QUOTED_DOUBLE; break;
-							case '\'': if((flags & FLAG_QUOTED_DOUBLE) == 0) flags ^= FLAG_QUOTED_SINGLE; break;
+						synchronized(cache) {
+							// Let the next lookup try it again
+							cache.values().remove(this);
 						}
 						
-						break;
+						throw ex;
 					}
-					case '}': if((flags & FLAG_QUOTED) == 0) ++countObject; break;
-					case ']': if((flags & FLAG_QUOTED) == 0) ++countArray;  break;
-					case '{': if((flags & FLAG_QUOTED) == 0 && countObject-- == 0 && countArray  == 0) return i; break;
-					case '[': if((flags & FLAG_QUOTED) == 0 && countArray--  == 0 && countObject == 0) return i; break;
 				}
+				
+				return positions.getOrDefault(episodeId, -1);
 			}
 			
-			return -1;
-		}
-		
-		// Assuming the start position is at an object boundary, i.e. the output of startOfObject.
-		private static final int endOfCollection(String string, int start) {
-			for(int i = start, countObject = 0, countArray = 0, flags = 0, l = string.length(); i < l; ++i) {
-				if((flags & FLAG_ESCAPED) != 0) {
-					flags ^= FLAG_ESCAPED;
-					continue; // Escaped, skip the character.
-				}
-				
-				switch(string.charAt(i)) {
-					case '\\': flags ^= FLAG_ESCAPED; continue;
-					case '\"': if((flags & FLAG_QUOTED_SINGLE) == 0) flags ^= FLAG_QUOTED_DOUBLE; break;
-					case '\'': if((flags & FLAG_QUOTED_DOUBLE) == 0) flags ^= FLAG_QUOTED_SINGLE; break;
-					case '{':  if((flags & FLAG_QUOTED) == 0) ++countObject; break;
-					case '[':  if((flags & FLAG_QUOTED) == 0) ++countArray;  break;
-					case '}':  if((flags & FLAG_QUOTED) == 0 && --countObject == 0 && countArray  == 0) return i; break;
-					case ']':  if((flags & FLAG_QUOTED) == 0 && --countArray  == 0 && countObject == 0) return i; break;
-				}
+			public long age() {
+				return System.currentTimeMillis() - created;
 			}
 			
-			return -1;
+			public boolean isExpired() {
+				return age() >= TTL_MS;
+			}
 		}
+	}
+	
+	private static final class NextJS {
 		
-		// Assuming the start and end positions being inside the same array.
-		private static final int countItems(String string, int start, int end) {
-			int count = 0;
-			
-			for(int i = start, countObject = 0, countArray = 0, flags = 0; i < end; ++i) {
-				if((flags & FLAG_ESCAPED) != 0) {
-					flags ^= FLAG_ESCAPED;
-					continue; // Escaped, skip the character.
-				}
-				
-				switch(string.charAt(i)) {
-					case '\\': flags ^= FLAG_ESCAPED; continue;
-					case '\"': if((flags & FLAG_QUOTED_SINGLE) == 0) flags ^= FLAG_QUOTED_DOUBLE; break;
-					case '\'': if((flags & FLAG_QUOTED_DOUBLE) == 0) flags ^= FLAG_QUOTED_SINGLE; break;
-					case '{':  if((flags & FLAG_QUOTED) == 0) ++countObject; break;
-					case '}':  if((flags & FLAG_QUOTED) == 0) --countObject; break;
-					case '[':  if((flags & FLAG_QUOTED) == 0) ++countArray;  break;
-					case ']':  if((flags & FLAG_QUOTED) == 0) --countArray; break;
-					case ',':  if((flags & FLAG_QUOTED) == 0 && countObject == 0 && countArray == 0) ++count; break;
-				}
+		private final String json;
+		private Index index;
+		
+		private NextJS(String json) {
+			this.json = Objects.requireNonNull(json);
+		}
+		
+		private final Index index() {
+			if(index == null) {
+				index = Index.of(json);
 			}
 			
-			return count;
-		}
-		
-		// Assuming the start position is inside the object we're trying to find.
-		private static final NamedObject outerNamedObject(String string, int start) {
-			int end;
-			if((start = startOfCollection(string, start)) < 0) return null;
-			if((end   =   endOfCollection(string, start)) < 0) return null;
-			
-			String content = string.substring(start, end + 1);
-			List<String> names = new ArrayList<>();
-			Matcher matcher = REGEX_OBJECT_NAME.matcher(string);
-			
-			// We need to extract the object's name. We do this by iteratively finding
-			// the parent's object's name. Each found segment is in region defined as
-			// <parent_start, object_start> and is of pattern `REGEX_OBJECT_NAME`.
-			// We extract the name by using a RegExp fixed from the end, thus the `$`.
-			// For an object inside an array its captured name would be null, in that
-			// case we count objects before it, which results in its index within that
-			// array. All of this will yield the name chain in reversed order.
-			while(
-				matcher
-					.region(start = startOfCollection(string, (end = start) - 1), end + 1)
-					.find()
-				&& names.add(
-					matcher.group(1) == null
-						? String.valueOf(countItems(string, start + 1, end))
-						: matcher.group(1)
-				)
-				&& start > 0
-			);
-			
-			Collections.reverse(names);
-			String name = String.join(".", names);
-			
-			return new NamedObject(name, JSON.read(content));
+			return index;
 		}
 		
 		public static final NextJS extract(Document document) {
@@ -1242,15 +1772,9 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 		}
 		
 		public final Stream<NamedObject> objectsOf(String typename) {
-			Regex regex = Regex.of(String.format(
-				"(?uis)\"__typename\"\\s*:\\s*\"%1$s\"",
-				Regex.quote(typename)
-			));
-			
 			return (
-				regex.matcher(json).results()
-					.map((mr) -> outerNamedObject(json, mr.start() - 1))
-					.filter(Objects::nonNull)
+				index().objectsOf(typename).stream()
+					.map((node) -> new NamedObject(node.name(), JSON.read(node.content(json))))
 			);
 		}
 		
@@ -1267,6 +1791,159 @@ public final class CeskaTelevizeEngine implements MediaEngine {
 			public String name() { return name; }
 			public JSONCollection object() { return object; }
 		}
+		
+		// A structural index of the JSON built in a single pass. It contains all the objects and arrays,
+		// their positions and parents, and the objects with a __typename, so that any number of lookups
+		// does not have to scan the whole string again.
+		private static final class Index {
+			
+			private final Map<String, List<Node>> typenames = new HashMap<>();
+			
+			private Index() {
+			}
+			
+			private static final String typenameKey(String typename) {
+				return typename.toLowerCase(Locale.ROOT);
+			}
+			
+			// Returns the position of the closing quote of the string starting at the given position.
+			private static final int endOfString(String string, int start) {
+				for(int i = start + 1, l = string.length(); i < l; ++i) {
+					switch(string.charAt(i)) {
+						case '\\': ++i; break; // Skip the escaped character
+						case '\"': return i;
+					}
+				}
+				
+				return -1;
+			}
+			
+			private static final int skipWhitespace(String string, int start) {
+				int i = start;
+				for(int l = string.length(); i < l && Character.isWhitespace(string.charAt(i)); ++i);
+				return i;
+			}
+			
+			public static final Index of(String json) {
+				Index index = new Index();
+				Node current = null;
+				
+				for(int i = 0, l = json.length(); i < l; ++i) {
+					char c = json.charAt(i);
+					
+					switch(c) {
+						case '\"': {
+							int end = endOfString(json, i);
+							
+							if(end < 0) {
+								return index; // Malformed, keep what was found so far
+							}
+							
+							if(current != null && current.isObject()) {
+								int next = skipWhitespace(json, end + 1);
+								
+								if(next < l && json.charAt(next) == ':') {
+									current.key = json.substring(i + 1, end);
+									i = next;
+									continue;
+								}
+								
+								if("__typename".equals(current.key)) {
+									String typename = typenameKey(json.substring(i + 1, end));
+									index.typenames.computeIfAbsent(typename, (k) -> new ArrayList<>()).add(current);
+								}
+							}
+							
+							i = end;
+							break;
+						}
+						case '{':
+						case '[':
+							current = new Node(current, i, c == '{');
+							break;
+						case '}':
+						case ']':
+							if(current != null) {
+								current.end = i;
+								current = current.parent;
+							}
+							
+							break;
+						case ',':
+							if(current != null && !current.isObject()) {
+								++current.count;
+							}
+							
+							break;
+					}
+				}
+				
+				return index;
+			}
+			
+			public List<Node> objectsOf(String typename) {
+				List<Node> nodes = typenames.get(typenameKey(typename));
+				
+				if(nodes == null) {
+					return List.of();
+				}
+				
+				List<Node> closed = new ArrayList<>(nodes.size());
+				
+				for(Node node : nodes) {
+					if(node.end >= 0) {
+						closed.add(node);
+					}
+				}
+				
+				return closed;
+			}
+		}
+		
+		private static final class Node {
+			
+			private final Node parent;
+			private final int start;
+			private final boolean isObject;
+			// The name of this node within its parent, i.e. a key or an index
+			private final String segment;
+			private int end = -1;
+			// The last key, if an object, or the number of items minus one, if an array
+			private String key;
+			private int count;
+			private String name;
+			
+			public Node(Node parent, int start, boolean isObject) {
+				this.parent = parent;
+				this.start = start;
+				this.isObject = isObject;
+				this.segment = parent == null
+					? null
+					: (parent.isObject ? parent.key : String.valueOf(parent.count));
+			}
+			
+			public boolean isObject() {
+				return isObject;
+			}
+			
+			public String content(String json) {
+				return json.substring(start, end + 1);
+			}
+			
+			// The name chain of the node, without the root, e.g. "props.pageProps.data".
+			public String name() {
+				if(name == null) {
+					if(parent == null) {
+						name = "";
+					} else {
+						String parentName = parent.name();
+						name = parentName.isEmpty() ? segment : parentName + '.' + segment;
+					}
+				}
+				
+				return name;
+			}
+		}
 	}
 	
 	private static interface CT {
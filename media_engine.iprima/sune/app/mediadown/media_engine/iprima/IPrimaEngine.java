@@ -91,9 +91,18 @@ public final class IPrimaEngine implements MediaEngine {
 				
 				@Override
 				protected void iteration(IPrima web) throws Exception {
+					if(!task.isRunning()) {
+						terminate(); // Stopped while waiting for a permit, do not list the web at all
+						return;
+					}
+					
 					ListTask<Program> webTask = web.getPrograms();
 					webTask.forwardAdd(task);
 					webTask.startAndWait();
+					
+					if(!task.isRunning()) {
+						terminate(); // The task does not accept any more items, stop the other webs
+					}
 				}
 			}).iterate(supportedWebs);
 		});
@@ -18,7 +18,10 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -59,6 +62,7 @@ import sune.app.mediadown.util.Reflection;
 import sune.app.mediadown.util.Regex;
 import sune.app.mediadown.util.Regex.ReusableMatcher;
 import sune.app.mediadown.util.Utils;
+import sune.app.mediadown.util.Utils.Ignore;
 
 final class IPrimaHelper {
 	
@@ -866,27 +870,46 @@ final class IPrimaHelper {
 	
 	static abstract class ConcurrentLoop<T> {
 		
-		protected final ExecutorService executor = Threads.Pools.newWorkStealing();
+		private static final int MAX_CONCURRENT_ITERATIONS = 4;
+		private static final int MAX_CONCURRENT_ITERATIONS_PER_HOST = 2;
+		
+		// The webs are on different hosts, therefore only iterations for the same host, i.e. of concurrent
+		// listings of the same web, share a limit. The semaphores are fair, so that the loops take turns.
+		private static final Map<Object, Semaphore> permits = new ConcurrentHashMap<>();
+		
+		protected final ExecutorService executor = Threads.Pools.newFixed(MAX_CONCURRENT_ITERATIONS);
 		protected final AtomicReference<Exception> exception = new AtomicReference<>();
+		protected final AtomicBoolean terminated = new AtomicBoolean();
 		protected final CounterLock counter = new CounterLock();
 		
 		protected abstract void iteration(T value) throws Exception;
 		
+		// Returns the key of the host the iteration sends its requests to, the value itself by default
+		protected Object hostOf(T value) {
+			return value;
+		}
+		
 		protected final void await() throws Exception {
 			counter.await();
 			
 			executor.shutdown();
-			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			// Do not throw the InterruptedException (i.e. when the loop was terminated, etc.)
+			Ignore.callVoid(() -> executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS));
 			
 			Exception ex;
-			if((ex = exception.get()) != null) {
+			if((ex = exception.get()) != null && !terminated.get()) {
 				throw ex;
 			}
 		}
 		
 		protected final void submit(T value) {
 			counter.increment();
-			executor.submit(new Iteration(value));
+			
+			try {
+				executor.submit(new Iteration(value));
+			} catch(RejectedExecutionException ex) {
+				counter.decrement(); // Already terminated
+			}
 		}
 		
 		@SuppressWarnings("unchecked")
@@ -898,6 +921,17 @@ final class IPrimaHelper {
 			await();
 		}
 		
+		// Stops the loop, e.g. when the task does not accept any more items. The running iterations
+		// are interrupted and the waiting ones are not run at all.
+		public void terminate() {
+			if(!terminated.compareAndSet(false, true)) {
+				return;
+			}
+			
+			executor.shutdownNow();
+			counter.free();
+		}
+		
 		protected class Iteration implements Callable<Void> {
 			
 			protected final T value;
@@ -909,8 +943,21 @@ final class IPrimaHelper {
 			@Override
 			public Void call() throws Exception {
 				try {
-					iteration(value);
-					return null;
+					Semaphore hostPermits = permits.computeIfAbsent(
+						hostOf(value), (k) -> new Semaphore(MAX_CONCURRENT_ITERATIONS_PER_HOST, true)
+					);
+					
+					hostPermits.acquire();
+					
+					try {
+						if(!terminated.get()) {
+							iteration(value);
+						}
+						
+						return null;
+					} finally {
+						hostPermits.release();
+					}
 				} catch(Exception ex) {
 					exception.compareAndSet(null, ex);
 					throw ex; // Propagate
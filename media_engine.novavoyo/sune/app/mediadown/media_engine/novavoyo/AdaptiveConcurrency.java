@@ -0,0 +1,74 @@
+package sune.app.mediadown.media_engine.novavoyo;
+
+// Limits the number of requests in flight and adapts the limit to how the server responds.
+// The limit is increased by one after a window of fast successful requests and decreased by one
+// when the requests become noticeably slower than the best observed latency. When the server
+// refuses a request (throttling), the limit is halved immediately.
+public final class AdaptiveConcurrency {
+	
+	private static final double LATENCY_SMOOTHING = 0.2;
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double MIN_LATENCY_DRIFT = 0.01;
+	
+	private final int maxLimit;
+	private int limit;
+	private int inFlight;
+	private int samples;
+	private double latency;
+	private double minLatency;
+	
+	public AdaptiveConcurrency(int initialLimit, int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+	}
+	
+	public synchronized void acquire() throws InterruptedException {
+		while(inFlight >= limit) {
+			wait();
+		}
+		
+		++inFlight;
+	}
+	
+	// Releases a request that failed for another reason than throttling. Its latency says nothing
+	// about the load of the server, so it is not used to adapt the limit.
+	public synchronized void release() {
+		--inFlight;
+		notifyAll();
+	}
+	
+	public synchronized void release(long latencyNs, boolean throttled) {
+		--inFlight;
+		
+		if(throttled) {
+			limit = Math.max(1, limit / 2);
+			samples = 0;
+		} else {
+			if(latency == 0.0) {
+				latency = minLatency = latencyNs;
+			} else {
+				latency += (latencyNs - latency) * LATENCY_SMOOTHING;
+				// Let the minimum slowly follow the current latency, so that the limit does not stay
+				// low forever when the server becomes generally slower.
+				minLatency = Math.min(latency, minLatency + (latency - minLatency) * MIN_LATENCY_DRIFT);
+			}
+			
+			// Evaluate once per window of samples, so that the limit is not changed on every request
+			if(++samples >= limit) {
+				if(latency > minLatency * LATENCY_TOLERANCE) {
+					limit = Math.max(1, limit - 1);
+				} else {
+					limit = Math.min(maxLimit, limit + 1);
+				}
+				
+				samples = 0;
+			}
+		}
+		
+		notifyAll();
+	}
+	
+	public synchronized int limit() {
+		return limit;
+	}
+}
@@ -0,0 +1,172 @@
+package sune.app.mediadown.media_engine.novavoyo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import sune.app.mediadown.entity.Program;
+import sune.app.mediadown.net.Net;
+import sune.app.mediadown.util.JSON;
+import sune.app.mediadown.util.JSON.JSONCollection;
+import sune.app.mediadown.util.JSON.JSONObject;
+import sune.app.mediadown.util.NIO;
+import sune.app.mediadown.util.Utils.Ignore;
+
+// A local index of the programs in the catalogue, keyed by their route URL, so that programs can be
+// listed without walking the whole catalogue every time. The index is stored in a file and is only
+// reconciled with the catalogue (i.e. removed programs are dropped) once in a while.
+public final class Catalogue {
+	
+	private static final int VERSION = 1;
+	private static final long RECONCILE_INTERVAL_MS = TimeUnit.HOURS.toMillis(12L);
+	
+	private final Path path;
+	private final Map<String, Item> programs = new LinkedHashMap<>();
+	private long reconciled;
+	private boolean dirty;
+	
+	private Catalogue(Path path) {
+		this.path = path;
+	}
+	
+	// Loads the index from the given file. If the file does not exist or cannot be read, the index
+	// is empty. If the path is null, the index is not stored at all.
+	public static final Catalogue load(Path path) {
+		Catalogue catalogue = new Catalogue(path);
+		
+		if(path != null && Files.exists(path)) {
+			Ignore.callVoid(catalogue::read);
+		}
+		
+		return catalogue;
+	}
+	
+	private final void read() throws IOException {
+		JSONCollection json = JSON.read(Files.readString(path));
+		
+		if(json.getInt("version", 0) != VERSION) {
+			return; // Incompatible, will be replaced
+		}
+		
+		for(JSONCollection item : json.getCollection("programs").collectionsIterable()) {
+			String route = item.getString("route");
+			String type = item.getString("type");
+			// Older indexes stored a missing type as an empty string
+			programs.put(route, new Item(route, item.getString("title"), type == null || type.isEmpty() ? null : type));
+		}
+		
+		reconciled = json.getLong("reconciled", 0L);
+	}
+	
+	private final String routeOf(Program program) {
+		return program.uri().toString();
+	}
+	
+	public synchronized boolean isEmpty() {
+		return programs.isEmpty();
+	}
+	
+	public synchronized boolean isStale() {
+		return System.currentTimeMillis() - reconciled >= RECONCILE_INTERVAL_MS;
+	}
+	
+	// Returns the programs sorted by their title, so that the order does not depend on whether
+	// a program was found by a full walk or added by a refresh.
+	public synchronized List<Program> programs() {
+		List<Item> items = new ArrayList<>(programs.values());
+		items.sort(Comparator.comparing((item) -> item.title, Comparator.nullsLast(String::compareToIgnoreCase)));
+		List<Program> list = new ArrayList<>(items.size());
+		
+		for(Item item : items) {
+			list.add(item.program());
+		}
+		
+		return list;
+	}
+	
+	// Adds the program to the index. Returns false, if the program is already present.
+	public synchronized boolean add(Program program) {
+		String route = routeOf(program);
+		
+		if(programs.containsKey(route)) {
+			return false;
+		}
+		
+		programs.put(route, new Item(route, program.title(), program.get("type")));
+		dirty = true;
+		return true;
+	}
+	
+	// Replaces the whole index with the programs found by walking the whole catalogue.
+	public synchronized void reconcile(Collection<Program> newPrograms) {
+		programs.clear();
+		
+		for(Program program : newPrograms) {
+			String route = routeOf(program);
+			programs.putIfAbsent(route, new Item(route, program.title(), program.get("type")));
+		}
+		
+		reconciled = System.currentTimeMillis();
+		dirty = true;
+	}
+	
+	public synchronized void save() throws IOException {
+		if(path == null || !dirty) {
+			return; // Nothing to do
+		}
+		
+		JSONCollection array = JSONCollection.emptyArray();
+		
+		for(Item item : programs.values()) {
+			array.add(item.toJSON());
+		}
+		
+		JSONCollection json = JSONCollection.ofObject(
+			"version", JSONObject.ofInt(VERSION),
+			"reconciled", JSONObject.ofLong(reconciled),
+			"programs", array
+		);
+		
+		NIO.save(path, json.toString(true));
+		dirty = false;
+	}
+	
+	private static final class Item {
+		
+		private final String route;
+		private final String title;
+		private final String type;
+		
+		public Item(String route, String title, String type) {
+			this.route = Objects.requireNonNull(route);
+			this.title = title;
+			this.type = type;
+		}
+		
+		public Program program() {
+			return new Program(Net.uri(route), title, "type", type);
+		}
+		
+		public JSONCollection toJSON() {
+			JSONCollection json = JSONCollection.ofObject(
+				"route", JSONObject.ofString(route),
+				"title", JSONObject.ofString(Objects.toString(title, ""))
+			);
+			
+			// Do not store a missing type, so that it is read back as null
+			if(type != null) {
+				json.set("type", type);
+			}
+			
+			return json;
+		}
+	}
+}
@@ -3,12 +3,12 @@ package sune.app.mediadown.media_engine.novavoyo;
 import java.net.URI;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 
 import sune.app.mediadown.media_engine.novavoyo.Authenticator.AuthenticationToken;
 import sune.app.mediadown.net.Net;
@@ -27,12 +27,16 @@ public final class Connection implements AutoCloseable {
 	private final Device device;
 	private WS ws;
 	private volatile Context context;
-	private AuthenticationToken authToken;
+	private volatile AuthenticationToken authToken;
 	private volatile boolean isOpen;
+	private volatile boolean isClosedRemotely;
 	
-	private final Map<String, Response> responses = new ConcurrentHashMap<>();
-	private final Lock lockResponse = new ReentrantLock();
-	private final Condition hasResponse = lockResponse.newCondition();
+	// Asynchronous responses are delivered through the WebSocket, possibly even before the HTTP
+	// request itself returns, therefore the future is registered before the request is sent.
+	// Responses without a registered future (e.g. arriving after a timeout) are dropped. Each
+	// waiter is woken up only by its own response, so any number of requests may be in flight
+	// over a single connection.
+	private final Map<String, CompletableFuture<Response>> responses = new ConcurrentHashMap<>();
 	private final CountDownLatch latchInit = new CountDownLatch(1);
 	
 	public Connection(String clientId, Device device) {
@@ -75,35 +79,41 @@ public final class Connection implements AutoCloseable {
 			request.header("Authorization", "Bearer " + authToken.value());
 		}
 		
-		JSONCollection json;
+		String requestId = data.getString("context.requestId");
+		CompletableFuture<Response> future = response(requestId);
 		
-		try(Web.Response.OfStream httpResponse = Web.requestStream(request.POST(body))) {
-			if(httpResponse.statusCode() != 200) {
-				throw new IllegalStateException(
-					"Non-success HTTP status code: " + httpResponse.statusCode()
-				);
-			}
+		try {
+			JSONCollection json;
 			
-			json = JSON.read(httpResponse.stream());
-		}
-		
-		String status = json.getString("result.status");
-		
-		// Since v1.9 the API primarily serves data synchronously. Handle both routes for now
-		// for compatibility reasons.
-		switch(status) {
-			case "Ok":
-				return new Response(path, status, json.getCollection("data"), Response.Type.SYNC);
-			case "OkAsync":
-				String requestId = json.getString("context.requestId");
-				
-				if(requestId == null) {
-					throw new IllegalStateException("Invalid request ID");
+			try(Web.Response.OfStream httpResponse = Web.requestStream(request.POST(body))) {
+				if(httpResponse.statusCode() != 200) {
+					throw new StatusCodeException(httpResponse.statusCode());
 				}
 				
-				return awaitResponse(requestId);
-			default:
-				return new Response(path, status, json, Response.Type.SYNC);
+				json = JSON.read(httpResponse.stream());
+			}
+			
+			String status = json.getString("result.status");
+			
+			// Since v1.9 the API primarily serves data synchronously. Handle both routes for now
+			// for compatibility reasons.
+			switch(status) {
+				case "Ok":
+					return new Response(path, status, json.getCollection("data"), Response.Type.SYNC);
+				case "OkAsync":
+					String asyncRequestId = json.getString("context.requestId");
+					
+					if(asyncRequestId == null) {
+						throw new IllegalStateException("Invalid request ID");
+					}
+					
+					return awaitResponse(asyncRequestId);
+				default:
+					return new Response(path, status, json, Response.Type.SYNC);
+			}
+		} finally {
+			// Not needed anymore, also when the response was synchronous
+			responses.remove(requestId, future);
 		}
 	}
 	
@@ -121,6 +131,7 @@ public final class Connection implements AutoCloseable {
 	
 	private final void doClose() {
 		ws.close();
+		responses.values().forEach((f) -> f.cancel(false));
 		responses.clear();
 		context = null;
 		ws = null;
@@ -129,15 +140,20 @@ public final class Connection implements AutoCloseable {
 	}
 	
 	private final void parseMessage(JSONCollection json) {
+		// Messages are dispatched concurrently, so a PING message may be received before
+		// the init message is processed, check for it first.
+		if("Ping".equals(json.getString("schema"))) {
+			if(context != null) {
+				sendPong();
+			}
+			
+			return; // Do not parse PING messages
+		}
+		
 		if(context == null) {
 			parseInitMessage(json);
 			latchInit.countDown();
 		} else {
-			if("Ping".equals(json.getString("schema"))) {
-				sendPong();
-				return; // Do not parse PING messages
-			}
-			
 			parseResponseMessage(json);
 		}
 	}
@@ -166,15 +182,18 @@ public final class Connection implements AutoCloseable {
 		
 		String key = "Ok".equals(status) ? "data" : "result";
 		JSONCollection data = response.getCollection(key);
-		Response responseObj = new Response(command, status, data, Response.Type.ASYNC);
-		lockResponse.lock();
-		
-		try {
-			responses.put(requestId, responseObj);
-			hasResponse.signalAll();
-		} finally {
-			lockResponse.unlock();
+		// Only complete a registered future, it is removed by its waiter. Creating a new one here
+		// would leave it in the map forever, if the waiter has already given up.
+		CompletableFuture<Response> future;
+		if(requestId == null || (future = responses.get(requestId)) == null) {
+			return; // Nobody is waiting for the response anymore
 		}
+		
+		future.complete(new Response(command, status, data, Response.Type.ASYNC));
+	}
+	
+	private final CompletableFuture<Response> response(String requestId) {
+		return responses.computeIfAbsent(requestId, (k) -> new CompletableFuture<>());
 	}
 	
 	private final void sendPong() {
@@ -204,6 +223,12 @@ public final class Connection implements AutoCloseable {
 		}
 	}
 	
+	// Returns whether the connection is open and was not closed by the server. While open, the server
+	// keeps the connection alive by pinging it.
+	public boolean isAlive() {
+		return isOpen && !isClosedRemotely;
+	}
+	
 	public void authenticate(AuthenticationToken authToken) {
 		this.authToken = authToken;
 	}
@@ -247,30 +272,15 @@ public final class Connection implements AutoCloseable {
 	}
 	
 	public Response awaitResponse(String requestId, long timeoutMs) throws Exception {
-		Response response;
-		if((response = responses.remove(requestId)) != null) {
-			return response;
-		}
-		
-		if(!lockResponse.tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
-			return null;
-		}
+		CompletableFuture<Response> future = response(requestId);
 		
 		try {
-			long remainingTime = timeoutMs * 1000000L;
-			
-			do {
-				remainingTime = hasResponse.awaitNanos(remainingTime);
-				
-				if((response = responses.remove(requestId)) != null) {
-					return response;
-				}
-			} while(remainingTime > 0L);
+			return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch(TimeoutException | CancellationException ex) {
+			return null; // Timed out or the connection was closed
 		} finally {
-			lockResponse.unlock();
+			responses.remove(requestId, future);
 		}
-		
-		return null;
 	}
 	
 	private final class WSListener implements WS.Listener {
@@ -281,6 +291,8 @@ public final class Connection implements AutoCloseable {
 		
 		@Override
 		public void onClose(int statusCode, String reason) {
+			// The connection cannot be used anymore, let the pool replace it
+			isClosedRemotely = true;
 		}
 		
 		@Override
@@ -325,6 +337,22 @@ public final class Connection implements AutoCloseable {
 		}
 	}
 	
+	public static final class StatusCodeException extends IllegalStateException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int statusCode;
+		
+		public StatusCodeException(int statusCode) {
+			super("Non-success HTTP status code: " + statusCode);
+			this.statusCode = statusCode;
+		}
+		
+		public int statusCode() {
+			return statusCode;
+		}
+	}
+	
 	public static final class Response {
 		
 		public static enum Type { ASYNC, SYNC; }
@@ -1,44 +1,66 @@
 package sune.app.mediadown.media_engine.novavoyo;
 
-import java.util.Arrays;
+import java.util.Deque;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import sune.app.mediadown.media_engine.novavoyo.Authenticator.AuthenticationToken;
 
+// The pool does not use any global lock. Available items are counted by a semaphore and kept
+// in a lock-free deque, each item is then guarded only by its own monitor, so that opening or
+// closing a connection of one item does not block acquiring of other items. Released items are
+// put to the head of the deque, so that the already opened connections are reused first and
+// the rarely used ones are left to be closed automatically. Since a connection can have multiple
+// requests in flight, an item may be shared by more users at once, it is then present in the deque
+// once for each of its free shares.
 public final class ConnectionPool implements AutoCloseable {
 	
-	private static final long AUTOCLOSE_ITEM_AFTER_MS = 20000L;
+	private static final long DEFAULT_IDLE_TIMEOUT_MS = 20000L;
 	
 	private final Device device;
 	private final ConnectionItem[] pool;
-	private final boolean[] acquired;
-	private final Lock lock = new ReentrantLock();
-	private final Condition isAvailable = lock.newCondition();
+	private final Deque<ConnectionItem> available;
+	private final Semaphore permits;
 	private final ScheduledExecutorService scheduler;
-	private final ScheduledFuture<?>[] scheduleFutures;
+	private final ThreadFactory threadFactory = new DaemonThreadFactory();
+	private final long idleTimeoutMs;
 	private volatile boolean isActive = true;
 	private volatile AuthenticationToken authToken;
 	
 	public ConnectionPool(int capacity, Device device) {
+		this(capacity, 1, DEFAULT_IDLE_TIMEOUT_MS, device);
+	}
+	
+	// A non-positive idle timeout means that unused connections are never closed.
+	public ConnectionPool(int capacity, int sharesPerItem, long idleTimeoutMs, Device device) {
+		if(capacity <= 0 || sharesPerItem <= 0) {
+			throw new IllegalArgumentException();
+		}
+		
 		this.device = Objects.requireNonNull(device);
+		this.idleTimeoutMs = idleTimeoutMs;
 		
 		pool = new ConnectionItem[capacity];
-		acquired = new boolean[capacity];
+		available = new ConcurrentLinkedDeque<>();
+		permits = new Semaphore(capacity * sharesPerItem);
 		
 		for(int i = 0, l = capacity; i < l; ++i) {
 			pool[i] = new ConnectionItem(i);
+			
+			// Fill the shares of an item first, so that as few connections as possible are opened
+			for(int k = 0; k < sharesPerItem; ++k) {
+				available.addLast(pool[i]);
+			}
 		}
 		
-		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
-		scheduleFutures = new ScheduledFuture[capacity];
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
 	}
 	
 	private final ConnectionItem acquire() throws InterruptedException {
@@ -46,116 +68,55 @@ public final class ConnectionPool implements AutoCloseable {
 			throw new IllegalStateException("Not active");
 		}
 		
-		lock.lock();
+		permits.acquire();
 		
-		try {
-			while(true) {
-				for(int i = 0, l = acquired.length; i < l; ++i) {
-					if(!acquired[i]) {
-						ConnectionItem item = pool[i];
-						item.acquire(); // Ensure the item is initialized internally
-						acquired[i] = true;
-						return item;
-					}
-				}
-				
-				isAvailable.await();
-				
-				if(!isActive) {
-					throw new InterruptedException();
-				}
-			}
-		} finally {
-			lock.unlock();
-		}
-	}
-	
-	private final void itemReleased(ConnectionItem item) {
 		if(!isActive) {
-			return;
-		}
-		
-		lock.lock();
-		
-		try {
-			acquired[item.idx] = false;
-			isAvailable.signal();
-		} finally {
-			lock.unlock();
+			permits.release(); // Let other waiting threads know as well
+			throw new InterruptedException();
 		}
-	}
-	
-	private final void releaseAll() {
-		isActive = false;
 		
-		lock.lock();
-		
-		for(int i = 0, l = acquired.length; i < l; ++i) {
-			if(acquired[i]) {
-				pool[i].release();
-			}
+		// The permit guarantees that there is an available item, unless the pool was just closed
+		ConnectionItem item;
+		if((item = available.pollFirst()) == null) {
+			throw new InterruptedException();
 		}
 		
 		try {
-			Arrays.fill(acquired, false);
-			Arrays.fill(pool, null);
-			isAvailable.signalAll();
-		} finally {
-			lock.unlock();
+			item.acquire(); // Ensure the item is initialized internally
+		} catch(RuntimeException ex) {
+			itemReleased(item);
+			throw ex; // Forward the exception
 		}
+		
+		return item;
 	}
 	
-	private final void closeUnusedItem(ConnectionItem item) {
-		lock.lock();
-		
-		try {
-			if(acquired[item.idx]) {
-				ScheduledFuture<?> future = scheduleItemClose(item, AUTOCLOSE_ITEM_AFTER_MS);
-				scheduleFutures[item.idx] = future;
-				return; // Currently acquired, cannot close
-			}
-			
-			item.dispose();
-		} finally {
-			lock.unlock();
+	private final void itemReleased(ConnectionItem item) {
+		if(!isActive) {
+			return;
 		}
+		
+		available.addFirst(item);
+		permits.release();
 	}
 	
 	private final ScheduledFuture<?> scheduleItemClose(ConnectionItem item, long ms) {
-		return scheduler.schedule(() -> closeUnusedItem(item), ms, TimeUnit.MILLISECONDS);
-	}
-	
-	private final void itemAcquired(ConnectionItem item) {
-		lock.lock();
+		if(ms <= 0L) {
+			return null; // Keep the connection open
+		}
 		
 		try {
-			ScheduledFuture<?> future;
-			if((future = scheduleFutures[item.idx]) != null) {
-				future.cancel(true);
-			}
-			
-			future = scheduleItemClose(item, AUTOCLOSE_ITEM_AFTER_MS);
-			scheduleFutures[item.idx] = future;
-		} finally {
-			lock.unlock();
+			return scheduler.schedule(item::closeIfUnused, ms, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException ex) {
+			return null; // The pool is being closed, the item will be disposed anyway
 		}
 	}
 	
 	public void authenticate(AuthenticationToken authToken) {
 		this.authToken = authToken;
 		
-		lock.lock();
-		
-		try {
-			for(ConnectionItem item : pool) {
-				Connection connection = item.connection;
-				
-				if(connection != null) {
-					connection.authenticate(authToken);
-				}
-			}
-		} finally {
-			lock.unlock();
+		for(ConnectionItem item : pool) {
+			item.authenticate(authToken);
 		}
 	}
 	
@@ -163,27 +124,32 @@ public final class ConnectionPool implements AutoCloseable {
 		return authToken != null;
 	}
 	
+	// Opens (and authenticates, if possible) connections of the given number of items in parallel,
+	// so that they are ready when they are needed. Does not wait for the connections to be opened.
+	public void warmUp(int count) {
+		if(!isActive) {
+			return;
+		}
+		
+		for(int i = 0, l = Math.min(count, pool.length); i < l; ++i) {
+			threadFactory.newThread(pool[i]::warmUp).start();
+		}
+	}
+	
 	@Override
 	public void close() throws Exception {
-		lock.lock();
+		isActive = false;
 		
-		try {
-			for(int i = 0, l = scheduleFutures.length; i < l; ++i) {
-				ScheduledFuture<?> future = scheduleFutures[i];
-				
-				if(future != null) {
-					future.cancel(true);
-				}
-			}
-			
-			scheduler.shutdownNow();
-			scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-			Arrays.fill(scheduleFutures, null);
-			
-			releaseAll();
-		} finally {
-			lock.unlock();
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		
+		for(ConnectionItem item : pool) {
+			item.dispose();
 		}
+		
+		available.clear();
+		// Wake up all the threads waiting for an item, they will fail since the pool is not active
+		permits.release(Math.max(1, permits.getQueueLength()));
 	}
 	
 	public ConnectionItem get() throws InterruptedException {
@@ -203,15 +169,22 @@ public final class ConnectionPool implements AutoCloseable {
 	public final class ConnectionItem implements AutoCloseable {
 		
 		private final int idx;
-		private Connection connection;
+		private volatile Connection connection;
+		private int users;
+		private ScheduledFuture<?> closeFuture;
 		
 		private ConnectionItem(int idx) {
 			this.idx = idx;
 		}
 		
-		private final void acquire() {
+		private final void ensureOpen() {
 			Connection con;
-			if((con = this.connection) == null) {
+			if((con = this.connection) != null && !con.isAlive()) {
+				con.close(); // Closed by the server, replace it
+				con = this.connection = null;
+			}
+			
+			if(con == null) {
 				con = new Connection(Common.newUUID(), device);
 				con.open(); // Automatically open
 				
@@ -221,17 +194,63 @@ public final class ConnectionPool implements AutoCloseable {
 				
 				this.connection = con;
 			}
+		}
+		
+		private final synchronized void acquire() {
+			ensureOpen();
+			++users;
 			
-			itemAcquired(this);
+			if(closeFuture != null) {
+				closeFuture.cancel(false);
+				closeFuture = null;
+			}
 		}
 		
 		private final void release() {
+			synchronized(this) {
+				if(users == 0) {
+					return; // Already released
+				}
+				
+				if(--users > 0) {
+					itemReleased(this);
+					return; // Still used by others
+				}
+				
+				if(isActive && connection != null) {
+					closeFuture = scheduleItemClose(this, idleTimeoutMs);
+				}
+			}
+			
 			itemReleased(this);
 		}
 		
-		private final void dispose() {
-			release();
+		private final synchronized void warmUp() {
+			if(!isActive) {
+				return;
+			}
+			
+			try {
+				ensureOpen();
+			} catch(RuntimeException ex) {
+				return; // Only an optimization, the connection will be opened when acquired
+			}
+			
+			if(users == 0 && closeFuture == null) {
+				closeFuture = scheduleItemClose(this, idleTimeoutMs);
+			}
+		}
+		
+		private final synchronized void closeIfUnused() {
+			if(users > 0) {
+				return; // Currently acquired, will be scheduled again when released
+			}
 			
+			closeFuture = null;
+			closeConnection();
+		}
+		
+		private final void closeConnection() {
 			Connection con;
 			if((con = this.connection) != null) {
 				con.close();
@@ -239,6 +258,24 @@ public final class ConnectionPool implements AutoCloseable {
 			}
 		}
 		
+		private final synchronized void authenticate(AuthenticationToken authToken) {
+			Connection con;
+			if((con = this.connection) != null) {
+				con.authenticate(authToken);
+			}
+		}
+		
+		private final synchronized void dispose() {
+			users = 0;
+			
+			if(closeFuture != null) {
+				closeFuture.cancel(false);
+				closeFuture = null;
+			}
+			
+			closeConnection();
+		}
+		
 		@Override
 		public void close() throws Exception {
 			release();
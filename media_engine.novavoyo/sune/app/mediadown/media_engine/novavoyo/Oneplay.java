@@ -1,16 +1,22 @@
 package sune.app.mediadown.media_engine.novavoyo;
 
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -35,6 +41,7 @@ import sune.app.mediadown.media_engine.novavoyo.Connection.Response;
 import sune.app.mediadown.net.Net;
 import sune.app.mediadown.task.ListTask;
 import sune.app.mediadown.util.CheckedFunction;
+import sune.app.mediadown.util.CheckedRunnable;
 import sune.app.mediadown.util.JSON.JSONCollection;
 import sune.app.mediadown.util.JSON.JSONObject;
 import sune.app.mediadown.util.Ref;
@@ -45,27 +52,93 @@ import sune.app.mediadown.util.Utils.Ignore;
 
 public final class Oneplay {
 	
-	private static final int DEFAULT_PARALLELISM = 4; // Currently not configurable
+	private static final int DEFAULT_PARALLELISM = 8;
+	private static final int MAX_PARALLELISM = 16;
+	private static final int REQUESTS_PER_CONNECTION = 4;
+	private static final int DEFAULT_CONNECTION_IDLE_TIMEOUT_MS = 120000;
+	private static final int DEFAULT_WARM_UP_CONNECTIONS = 0;
 	private static final VarLoader<Oneplay> instance = VarLoader.of(Oneplay::createInstance);
 	
 	private static final String APP_VERSION = "R12.26";
 	private static final String DEVICE_TYPE_WEB = "web";
 	private static final int PROGRAM_LIST_MAX_ITEMS_PER_PAGE = 24; // Capped at 24
 	private static final int EPISODE_LIST_MAX_ITEMS_PER_PAGE = 12; // Capped at 12
+	private static final String RESULT_CODE_NO_PAGE = "4055";
+	private static final int EPISODE_PROBES = 4;
+	private static final int PAGE_INTERRUPTED = -1;
+	private static final int PAGE_NONE = 0;
+	private static final int PAGE_LAST = 1;
+	private static final int PAGE_HAS_NEXT = 2;
+	private static final String PROGRAMS_CAROUSEL_ID = "page:25;carousel:277";
+	private static final String SORT_OPTION_TITLE = "title-asc";
+	// The newest programs first. If the server does not accept it, the refresh is skipped
+	// and new programs are found only by the periodic reconciliation.
+	private static final String SORT_OPTION_RECENT = "date-desc";
+	private static final int CATALOGUE_REFRESH_MAX_PAGES = 5;
+	private static final String CATALOGUE_FILE_NAME = "media_engine.novavoyo.catalogue.json";
 	
 	private final int parallelism;
+	private final int warmUpConnections;
 	private final ConnectionPool connectionPool;
+	private final ExecutorService executor;
+	private final AdaptiveConcurrency concurrency;
+	private final VarLoader<Catalogue> catalogue = VarLoader.of(Oneplay::loadCatalogue);
+	private final AtomicBoolean reconciling = new AtomicBoolean();
+	private final JSONCollection playbackCapabilities = createPlaybackCapabilities();
 	private final Lock lockAuth = new ReentrantLock();
 	private volatile String lastAccountId;
 	private volatile boolean wasProfileSelect;
 	
 	public Oneplay(int parallelism) {
+		this(parallelism, DEFAULT_CONNECTION_IDLE_TIMEOUT_MS, DEFAULT_WARM_UP_CONNECTIONS);
+	}
+	
+	public Oneplay(int parallelism, long connectionIdleTimeoutMs, int warmUpConnections) {
 		this.parallelism = parallelism;
-		this.connectionPool = new ConnectionPool(parallelism, webDevice());
+		this.warmUpConnections = warmUpConnections;
+		// Multiple requests can be in flight over a single connection, so fewer connections are needed
+		int connections = (parallelism + REQUESTS_PER_CONNECTION - 1) / REQUESTS_PER_CONNECTION;
+		this.connectionPool = new ConnectionPool(
+			connections, REQUESTS_PER_CONNECTION, connectionIdleTimeoutMs, webDevice()
+		);
+		// Reused by all the calls, so that the threads are not created for each listing
+		this.executor = parallelism > 1 ? Threads.Pools.newFixed(parallelism) : null;
+		// Start at a half of the parallelism and let it grow while the server keeps up
+		this.concurrency = new AdaptiveConcurrency((parallelism + 1) / 2, parallelism);
+	}
+	
+	public static final int defaultParallelism() {
+		return DEFAULT_PARALLELISM;
+	}
+	
+	public static final int defaultConnectionIdleTimeoutMs() {
+		return DEFAULT_CONNECTION_IDLE_TIMEOUT_MS;
+	}
+	
+	public static final int defaultWarmUpConnections() {
+		return DEFAULT_WARM_UP_CONNECTIONS;
+	}
+	
+	private static final int configuredValue(String name, int defaultValue) {
+		return Ignore.defaultValue(() -> Common.configuration().intValue(name), defaultValue);
+	}
+	
+	private static final int configuredParallelism() {
+		int parallelism = configuredValue("parallelism", DEFAULT_PARALLELISM);
+		return Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+	}
+	
+	private static final Catalogue loadCatalogue() {
+		Path path = Ignore.call(() -> Common.configuration().path().resolveSibling(CATALOGUE_FILE_NAME));
+		return Catalogue.load(path);
 	}
 	
 	private static final Oneplay createInstance() {
-		return new Oneplay(DEFAULT_PARALLELISM);
+		return new Oneplay(
+			configuredParallelism(),
+			configuredValue("connectionIdleTimeoutMs", DEFAULT_CONNECTION_IDLE_TIMEOUT_MS),
+			Math.max(0, configuredValue("warmUpConnections", DEFAULT_WARM_UP_CONNECTIONS))
+		);
 	}
 	
 	public static final Oneplay instance() {
@@ -79,16 +152,51 @@ public final class Oneplay {
 			return function.apply(item.connection());
 		}
 	}
-
-	private final <T> T openConnectionItem(
-		CheckedFunction<ConnectionPool.ConnectionItem, T> function
-	) throws Exception {
-		try(ConnectionPool.ConnectionItem item = connectionPool.get()) {
-			return function.apply(item);
+	
+	private static final boolean isThrottlingStatusCode(int statusCode) {
+		return statusCode == 429 || statusCode == 503;
+	}
+	
+	private static final boolean isThrottlingResponse(Response response) {
+		if(response.isSuccess()) {
+			return false;
 		}
+		
+		String message = response.data().getString("result.message", "");
+		return message.toLowerCase(Locale.ROOT).contains("too many requests");
 	}
 	
-	private final JSONCollection playbackCapabilities() {
+	// Sends a carousel.display request with the number of requests in flight limited adaptively.
+	// Only HTTP 429 and 503 responses and requests refused by the server for being too many are
+	// considered to be a sign of throttling, other failures do not affect the limit.
+	private final Response displayCarousel(JSONCollection payload) throws Exception {
+		concurrency.acquire();
+		
+		long start = System.nanoTime();
+		boolean throttled = false;
+		boolean failed = true;
+		
+		try {
+			Response response = openConnection((connection) -> {
+				return connection.request("carousel.display", payload);
+			});
+			
+			throttled = isThrottlingResponse(response);
+			failed = false;
+			return response;
+		} catch(Connection.StatusCodeException ex) {
+			throttled = isThrottlingStatusCode(ex.statusCode());
+			throw ex; // Forward the exception
+		} finally {
+			if(failed && !throttled) {
+				concurrency.release();
+			} else {
+				concurrency.release(System.nanoTime() - start, throttled);
+			}
+		}
+	}
+	
+	private static final JSONCollection createPlaybackCapabilities() {
 		return JSONCollection.ofObject(
 			"protocols", JSONCollection.ofArray(
 				JSONObject.ofString("dash"),
@@ -119,6 +227,12 @@ public final class Oneplay {
 		);
 	}
 	
+	// The capabilities are the same for all the requests, build them only once. A request only
+	// serializes them, so the same instance can be shared.
+	private final JSONCollection playbackCapabilities() {
+		return playbackCapabilities;
+	}
+	
 	private final MessageException resultError(JSONCollection data) {
 		if("Error".equals(data.getString("result.status"))) {
 			int code = Ignore.defaultValue(() -> Integer.parseInt(data.getString("result.code")), 0);
@@ -313,14 +427,24 @@ public final class Oneplay {
 				throw new TranslatableException("error.incorrect_auth_data");
 			}
 			
-			AuthenticationData authData = openConnection((connection) -> {
-				return Authenticator.login(connection, requiredAccountId, doProfileSelect);
-			});
+			AuthenticationData authData;
+			
+			// The login process changes the authentication token of the connection it uses, therefore
+			// use a separate connection, so that requests of other users of a pooled connection that
+			// are in flight at the same time are not affected.
+			try(Connection connection = new Connection(Common.newUUID(), webDevice())) {
+				authData = Authenticator.login(connection.open(), requiredAccountId, doProfileSelect);
+			}
 			
 			connectionPool.authenticate(authData.authToken());
 			Authenticator.rememberAuthenticationData(authData);
 			lastAccountId = authData.accountId();
 			wasProfileSelect = doProfileSelect;
+			
+			// Open the connections in advance, so that the following requests do not have to wait
+			if(warmUpConnections > 0) {
+				connectionPool.warmUp(warmUpConnections);
+			}
 		} finally {
 			lockAuth.unlock();
 		}
@@ -469,11 +593,68 @@ public final class Oneplay {
 	}
 	
 	private final Strategy strategy() {
-		return parallelism > 1 ? new ParallelStrategy(parallelism) : new SerialStrategy();
+		return parallelism > 1 ? new ParallelStrategy() : new SerialStrategy();
+	}
+	
+	// Lists the programs from the local index, if available, and then only checks for the newest
+	// programs. The whole catalogue is walked only when there is no index, or in the background,
+	// when the index has not been reconciled for some time.
+	private final void listPrograms(ListTask<Program> task) throws Exception {
+		Catalogue catalogue = this.catalogue.value();
+		
+		if(catalogue.isEmpty()) {
+			reconcilePrograms(task, catalogue);
+			return;
+		}
+		
+		for(Program program : catalogue.programs()) {
+			if(!task.add(program)) {
+				return; // Do not continue
+			}
+		}
+		
+		strategy().refreshPrograms(task, catalogue);
+		Ignore.callVoid(catalogue::save);
+		
+		if(catalogue.isStale()) {
+			reconcileProgramsInBackground(catalogue);
+		}
+	}
+	
+	// Walks the whole catalogue and, if all the pages were obtained, replaces the index with
+	// the found programs.
+	private final void reconcilePrograms(ListTask<Program> task, Catalogue catalogue) throws Exception {
+		List<Program> programs = Collections.synchronizedList(new ArrayList<>());
+		
+		if(!strategy().getPrograms(task, programs::add)) {
+			return; // Incomplete, keep the current index
+		}
+		
+		catalogue.reconcile(programs);
+		Ignore.callVoid(catalogue::save);
+	}
+	
+	private final void reconcileProgramsInBackground(Catalogue catalogue) {
+		if(!reconciling.compareAndSet(false, true)) {
+			return; // Already running
+		}
+		
+		Thread thread = new Thread(() -> {
+			try {
+				ListTask.<Program>of((task) -> reconcilePrograms(task, catalogue)).startAndGet();
+			} catch(Exception ex) {
+				// Ignore, the index will be reconciled next time
+			} finally {
+				reconciling.set(false);
+			}
+		});
+		
+		thread.setDaemon(true);
+		thread.start();
 	}
 	
 	public ListTask<Program> getPrograms() throws Exception {
-		return ListTask.of(Common.handleErrors((task) -> strategy().getPrograms(task)));
+		return ListTask.of(Common.handleErrors((task) -> listPrograms(task)));
 	}
 	
 	public ListTask<Episode> getEpisodes(Program program) throws Exception {
@@ -503,18 +684,25 @@ public final class Oneplay {
 	}
 	
 	public void dispose() throws Exception {
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+		
 		connectionPool.close();
 	}
 	
 	private static interface Strategy {
 		
-		void getPrograms(ListTask<Program> task) throws Exception;
+		boolean getPrograms(ListTask<Program> task, Consumer<Program> listener) throws Exception;
+		void refreshPrograms(ListTask<Program> task, Catalogue catalogue) throws Exception;
 		void getEpisodes(ListTask<Episode> task, Program program) throws Exception;
 		void getMedia(ListTask<Media> task, MediaEngine engine, URI uri) throws Exception;
 	}
 	
 	private abstract class StrategyBase implements Strategy {
 		
+		private Consumer<Program> programListener;
+		
 		protected StrategyBase() {
 		}
 		
@@ -528,63 +716,118 @@ public final class Oneplay {
 			
 			String title = item.getString("title");
 			URI uri = Net.uri(item.getString("action.route.url"));
-			return new Program(uri, title, "type", type);
-		}
-		
-		protected final Episode parseEpisodeItem(Program program, JSONCollection item) {
-			String routeUrl = item.getString("action.route.url");
+			Program program = new Program(uri, title, "type", type);
 			
-			if(routeUrl == null) {
-				return null; // Ignore non-routable episodes
+			if(programListener != null) {
+				programListener.accept(program);
 			}
 			
-			URI uri = Net.uri(item.getString("action.route.url"));
-			MediaInfo info = getMediaInfo(item.getCollection("tracking"));
-			
-			return new Episode(program, uri, info.title(), info.episodeNumber(), info.seasonNumber());
+			return program;
 		}
 		
-		protected abstract void getPrograms(ListTask<Program> task, JSONCollection payload,
-				int page, int maxPage, int itemsPerPage) throws Exception;
-		protected abstract void getEpisodes(ListTask<Episode> task, Program program,
-				List<SeasonInfo> seasons, Function<JSONCollection, Episode> itemParser,
-				int itemsPerPage) throws Exception;
-		
-		public void getPrograms(ListTask<Program> task) throws Exception {
+		protected final JSONCollection programsPayload(String sortOption, int page, int itemsPerPage) {
 			JSONCollection filters = JSONCollection.ofObject(
 				"catalogue", JSONObject.ofString("oneplay")
 			);
 			
-			final int itemsPerPage = PROGRAM_LIST_MAX_ITEMS_PER_PAGE;
-			int page = 1;
-			String carouselId = "page:25;carousel:277";
 			String filterCriterias = "filter:" + Utils.base64Encode(filters.toString(true));
-			String sortOption = "title-asc";
 			
 			JSONCollection pagination = JSONCollection.ofObject(
 				"count", JSONObject.ofInt(itemsPerPage),
 				"position", JSONObject.ofInt((page - 1) * itemsPerPage + 1)
 			);
 			
-			JSONCollection payload = JSONCollection.ofObject(
-				"carouselId", JSONObject.ofString(carouselId),
+			return JSONCollection.ofObject(
+				"carouselId", JSONObject.ofString(PROGRAMS_CAROUSEL_ID),
 				"criteria", JSONCollection.ofObject(
 					"filterCriterias", JSONObject.ofString(filterCriterias),
 					"sortOption", JSONObject.ofString(sortOption)
 					),
 				"paging", pagination
 			);
+		}
+		
+		protected final Episode parseEpisodeItem(Program program, JSONCollection item) {
+			String routeUrl = item.getString("action.route.url");
+			
+			if(routeUrl == null) {
+				return null; // Ignore non-routable episodes
+			}
+			
+			URI uri = Net.uri(item.getString("action.route.url"));
+			MediaInfo info = getMediaInfo(item.getCollection("tracking"));
+			
+			return new Episode(program, uri, info.title(), info.episodeNumber(), info.seasonNumber());
+		}
+		
+		// Returns false, if not all the pages were obtained
+		protected abstract boolean getPrograms(ListTask<Program> task, JSONCollection payload,
+				int page, int maxPage, int itemsPerPage) throws Exception;
+		protected abstract void getEpisodes(ListTask<Episode> task, Program program,
+				List<SeasonInfo> seasons, Function<JSONCollection, Episode> itemParser,
+				int itemsPerPage) throws Exception;
+		
+		@Override
+		public boolean getPrograms(ListTask<Program> task, Consumer<Program> listener) throws Exception {
+			final int itemsPerPage = PROGRAM_LIST_MAX_ITEMS_PER_PAGE;
+			int page = 1;
+			JSONCollection payload = programsPayload(SORT_OPTION_TITLE, page, itemsPerPage);
+			programListener = listener;
 			
 			JSONCollection data = openConnection((connection) -> {
 				return successData(connection.request("carousel.display", payload));
 			});
 			
 			if(!parseCarouselData(task, data, this::parseProgramItem)) {
-				return; // Interrupted, do not continue
+				return false; // Interrupted, do not continue
 			}
 			
 			final int maxPage = data.getInt("carousel.paging.pageCount", 1);
-			getPrograms(task, payload, page, maxPage, itemsPerPage);
+			return getPrograms(task, payload, page, maxPage, itemsPerPage);
+		}
+		
+		// Adds the programs that are not in the index yet, going from the newest ones, and stops
+		// at the first page with an already known program.
+		@Override
+		public void refreshPrograms(ListTask<Program> task, Catalogue catalogue) throws Exception {
+			final int itemsPerPage = PROGRAM_LIST_MAX_ITEMS_PER_PAGE;
+			
+			for(int page = 1; page <= CATALOGUE_REFRESH_MAX_PAGES; ++page) {
+				Response response = displayCarousel(programsPayload(SORT_OPTION_RECENT, page, itemsPerPage));
+				
+				if(!response.isSuccess()) {
+					return; // Not supported, rely on the reconciliation
+				}
+				
+				JSONCollection data = response.data();
+				JSONCollection items = data.getCollection("carousel.tiles");
+				
+				if(items == null) {
+					return; // No more programs
+				}
+				
+				boolean known = false;
+				
+				for(JSONCollection item : items.collectionsIterable()) {
+					Program program;
+					if((program = parseProgramItem(item)) == null) {
+						continue;
+					}
+					
+					if(!catalogue.add(program)) {
+						known = true;
+						continue;
+					}
+					
+					if(!task.add(program)) {
+						return; // Do not continue
+					}
+				}
+				
+				if(known || !data.getBoolean("carousel.paging.next")) {
+					return; // Caught up with the index
+				}
+			}
 		}
 		
 		@Override
@@ -634,10 +877,8 @@ public final class Oneplay {
 			getEpisodes(task, program, seasons, itemParser, itemsPerPage);
 		}
 		
-		@Override
-		public void getMedia(ListTask<Media> task, MediaEngine engine, URI uri) throws Exception {
-			ensureAuthenticated(null, true);
-			
+		// Resolves the media of a single URI, the caller must ensure the authentication.
+		protected final List<Media> resolveMedia(MediaEngine engine, URI uri) throws Exception {
 			PlayPayload playPayload = openConnection((connection) -> {
 				return getPlayPayload(connection, uri);
 			});
@@ -659,6 +900,7 @@ public final class Oneplay {
 				));
 			});
 			
+			List<Media> resolved = new ArrayList<>();
 			MediaSource source = MediaSource.of(engine);
 			URI sourceUri = uri;
 			String title = getMediaTitle(data);
@@ -723,44 +965,46 @@ public final class Oneplay {
 					}
 				}
 				
-				for(Media s : Utils.iterable(media.stream().map(Media.Builder::build).iterator())) {
-					if(!task.add(s)) {
-						return; // Do not continue
-					}
+				for(Media.Builder<?, ?> builder : media) {
+					resolved.add(builder.build());
 				}
 			}
+			
+			return resolved;
 		}
-	}
-	
-	private final class ParallelStrategy extends StrategyBase {
 		
-		private final int parallelism;
+		protected final boolean addMedia(ListTask<Media> task, List<Media> media) throws Exception {
+			for(Media s : media) {
+				if(!task.add(s)) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
 		
-		public ParallelStrategy(int parallelism) {
-			this.parallelism = parallelism;
+		@Override
+		public void getMedia(ListTask<Media> task, MediaEngine engine, URI uri) throws Exception {
+			ensureAuthenticated(null, true);
+			addMedia(task, resolveMedia(engine, uri));
 		}
+	}
+	
+	private final class ParallelStrategy extends StrategyBase {
 		
 		@Override
-		protected void getPrograms(ListTask<Program> task, JSONCollection payload, int page,
+		protected boolean getPrograms(ListTask<Program> task, JSONCollection payload, int page,
 				int maxPage, int itemsPerPage) throws Exception {
-			JSONCollection[] payloads = new JSONCollection[parallelism];
-			
-			for(int i = 0, l = payloads.length; i < l; ++i) {
-				payloads[i] = payload.copy();
-			}
-			
-			ExecutorService es = Threads.Pools.newFixed(parallelism);
+			Batch batch = new Batch();
+			boolean success = false;
 			
 			try {
 				while(++page <= maxPage) {
-					final int p = page;
-					es.submit(Common.handleErrors(() -> {
-						JSONCollection lData = openConnectionItem((item) -> {
-							JSONCollection lPayload = payloads[item.idx()];
-							lPayload.set("paging.position", (p - 1) * itemsPerPage + 1);
-							Connection con = item.connection();
-							return successData(con.request("carousel.display", payload));
-						});
+					JSONCollection lPayload = payload.copy();
+					lPayload.set("paging.position", (page - 1) * itemsPerPage + 1);
+					
+					batch.submit(() -> {
+						JSONCollection lData = successData(displayCarousel(lPayload));
 						
 						List<Program> lp = ListTask.<Program>of((t) -> {
 							if(!parseCarouselData(t, lData, this::parseProgramItem)) {
@@ -771,169 +1015,230 @@ public final class Oneplay {
 						synchronized(task) {
 							task.addAll(lp);
 						}
-					}));
+					});
 				}
 			} finally {
-				es.shutdown();
-				es.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				success = batch.await();
 			}
+			
+			return success;
 		}
 		
-		@Override
-		protected void getEpisodes(ListTask<Episode> task, Program program, List<SeasonInfo> seasons,
-				Function<JSONCollection, Episode> itemParser, int itemsPerPage) throws Exception {
-			ExecutorService es = Threads.Pools.newFixed(parallelism);
+		// Fetches the given page of episodes and adds its items to the task. Returns whether the page
+		// exists and whether there is a next page, or PAGE_INTERRUPTED, if the task does not accept
+		// any more items.
+		private final int fetchEpisodesPage(ListTask<Episode> task, JSONCollection payload, int page,
+				int itemsPerPage, Function<JSONCollection, Episode> itemParser) throws Exception {
+			JSONCollection lPayload = payload.copy();
+			lPayload.set("paging.position", page * itemsPerPage + 1);
 			
-			try {
-				for(SeasonInfo info : seasons) {
-					String carouselId = info.carouselId();
-					String seasonId = info.seasonId();
-					
-					int position = 1;
-					JSONCollection pagination = JSONCollection.ofObject(
-						"count", JSONObject.ofInt(itemsPerPage),
-						"position", JSONObject.ofInt(position)
-					);
-					
-					JSONCollection payload = JSONCollection.ofObject(
-						"carouselId", JSONObject.ofString(carouselId),
-						"criteria", JSONCollection.ofObject(
-							"filterCriterias", JSONObject.ofString(seasonId),
-							"sortOption", JSONObject.ofString("DESC")
-						),
-						"paging", pagination
-					);
-					
-					Set<Integer> seen = new HashSet<>();
-					
-					// Since we don't know the total number of pages, only the information whether
-					// there is a next page or not, we must find the end manually. For this we use
-					// binary search, so that we can find the end quickly when the number of pages
-					// is high.
-					int count = itemsPerPage, lo = 0, hi = count, c;
+			Response response = displayCarousel(lPayload);
+			JSONCollection data = response.data();
+			
+			if(!response.isSuccess()) {
+				if(RESULT_CODE_NO_PAGE.equals(data.getString("result.code"))) {
+					return PAGE_NONE;
+				}
+				
+				handleErrors(data);
+				return PAGE_NONE; // Not an error, but there are no items either
+			}
+			
+			JSONCollection tiles = data.getCollection("carousel.tiles");
+			
+			if(tiles == null || !tiles.collectionsIterable().iterator().hasNext()) {
+				return PAGE_NONE;
+			}
+			
+			synchronized(task) {
+				if(parseCarouselDataCount(task, data, itemParser) < 0) {
+					return PAGE_INTERRUPTED;
+				}
+			}
+			
+			return data.getBoolean("carousel.paging.next") ? PAGE_HAS_NEXT : PAGE_LAST;
+		}
+		
+		// Returns the pages to probe at once, when the pages up to `lo` are known to exist and
+		// the pages from `hi` are known not to exist. When the end is not known yet, the distance
+		// of the probes grows exponentially, otherwise the unknown range is split evenly.
+		private final List<Integer> probePages(int lo, int hi) {
+			List<Integer> pages = new ArrayList<>(EPISODE_PROBES);
+			
+			if(hi == Integer.MAX_VALUE) {
+				int distance = Math.max(1, lo + 1);
+				
+				for(int i = 0; i < EPISODE_PROBES; ++i) {
+					pages.add(lo + (distance << i));
+				}
+			} else {
+				for(int i = 1, page, last = lo; i <= EPISODE_PROBES; ++i) {
+					page = lo + (int) ((long) (hi - lo) * i / (EPISODE_PROBES + 1));
 					
-					// First, find the first page that does not have any episodes. The found page
-					// may not be the actual last page, but we have an approximate end.
-					while(true) {
-						pagination.set("position", hi + 1);
-						Response response = openConnection((connection) -> {
-							return connection.request("carousel.display", payload);
-						});
-						
-						JSONCollection data = response.data();
-						
-						if(!response.isSuccess()) {
-							if("4055".equals(data.getString("result.code"))) {
-								break; // There are no next pages
-							}
-							
-							handleErrors(data);
-							return; // Do not continue
-						}
-						
-						// Also extract the items, since we already visited the page.
-						if((c = parseCarouselDataCount(task, data, itemParser)) < 0) {
-							return; // Interrupted, do not continue
-						}
-						
-						if(!data.getBoolean("carousel.paging.next")) {
-							break; // There are no next pages
-						}
-						
-						seen.add(hi);
-						lo = hi;
-						hi *= 2;
+					if(page > last && page < hi) {
+						pages.add(page);
+						last = page;
 					}
+				}
+				
+				if(pages.isEmpty()) {
+					pages.add(lo + 1);
+				}
+			}
+			
+			return pages;
+		}
+		
+		// Finds the last page of a season and fetches all the pages at the same time. The probes
+		// are sent concurrently and each of them also fetches the items of its page. The pages that
+		// are known to exist are passed to the batch as soon as they are discovered, so they are
+		// fetched while the search for the last page continues.
+		private final boolean getSeasonEpisodes(ListTask<Episode> task, Batch batch, JSONCollection payload,
+				int itemsPerPage, Function<JSONCollection, Episode> itemParser,
+				Ref.Mutable<Boolean> interrupted) throws Exception {
+			Set<Integer> fetched = new HashSet<>();
+			int lo = -1, hi = Integer.MAX_VALUE, submitted = 0;
+			
+			while(hi - lo > 1) {
+				List<Integer> pages = probePages(lo, hi);
+				List<Future<Integer>> futures = new ArrayList<>(pages.size());
+				
+				for(int page : pages) {
+					futures.add(executor.submit(() -> {
+						return fetchEpisodesPage(task, payload, page, itemsPerPage, itemParser);
+					}));
+				}
+				
+				for(int i = 0, l = pages.size(); i < l; ++i) {
+					int page = pages.get(i), result;
 					
-					// Second, find the actual end with any items using the binary search.
-					// We have: lo = a page with some items, hi = a page with no items.
-					// Therefore the actual end lies in the range <lo, hi).
-					while(hi - lo > count) {
-						int mid = lo + (hi - lo) / 2;
-						
-						Response response = openConnection((connection) -> {
-							return connection.request("carousel.display", payload);
-						});
-						
-						JSONCollection data = response.data();
-						
-						if(!response.isSuccess()) {
-							if("4055".equals(data.getString("result.code"))) {
-								hi = mid; // No items, end reached
-								continue;
-							}
-							
-							handleErrors(data);
-							return; // Do not continue
-						}
-						
-						// Also extract the items, since we already visited the page.
-						if((c = parseCarouselDataCount(task, data, itemParser)) < 0) {
-							return; // Interrupted, do not continue
+					try {
+						result = futures.get(i).get();
+					} catch(ExecutionException ex) {
+						for(Future<Integer> future : futures) {
+							future.cancel(true);
 						}
 						
-						if(c == 0) {
-							hi = mid; // No items, end reached
-						} else {
-							lo = mid; // Items present, still not the end
-							seen.add(mid);
-						}
+						Throwable cause = ex.getCause();
+						throw cause instanceof Exception ? (Exception) cause : ex;
 					}
 					
-					hi = lo;
-					lo = 0;
+					if(result == PAGE_INTERRUPTED) {
+						interrupted.set(true);
+						return false;
+					}
 					
-					JSONCollection[] payloads = new JSONCollection[parallelism];
-					Ref.Mutable<Boolean> interrupted = new Ref.Mutable<>(false);
+					fetched.add(page);
 					
-					for(int i = 0, l = payloads.length; i < l; ++i) {
-						payloads[i] = payload.copy();
+					switch(result) {
+						case PAGE_NONE:     hi = Math.min(hi, page); break;
+						case PAGE_LAST:     lo = Math.max(lo, page); hi = Math.min(hi, page + 1); break;
+						case PAGE_HAS_NEXT: lo = Math.max(lo, page + 1); break;
+					}
+				}
+				
+				// The server may be inconsistent, trust the pages with items
+				if(hi <= lo) {
+					hi = lo + 1;
+				}
+				
+				// Fetch the pages that are now known to exist
+				for(; submitted <= lo; ++submitted) {
+					if(fetched.contains(submitted)) {
+						continue;
 					}
 					
-					// Finally, loop through all pages in the found range but skip all pages we've
-					// already extracted items from. Use multiple threads to speed things up.
-					for(int off = lo; off <= hi; off += itemsPerPage) {
-						if(seen.contains(off)) {
-							continue;
+					final int page = submitted;
+					
+					batch.submit(() -> {
+						if(interrupted.get()) {
+							return; // Interrupted, do not continue
 						}
 						
-						final int o = off;
-						
-						es.submit(Common.handleErrors(() -> {
-							if(interrupted.get()) {
-								return; // Interrupted, do not continue
-							}
-							
-							JSONCollection lData = openConnectionItem((item) -> {
-								JSONCollection lPayload = payloads[item.idx()];
-								lPayload.set("paging.position", o + 1);
-								Connection con = item.connection();
-								return successData(con.request("carousel.display", payload));
-							});
-							
-							List<Episode> lp = ListTask.<Episode>of((t) -> {
-								if(!parseCarouselData(t, lData, itemParser)) {
-									interrupted.set(true);
-								}
-							}).startAndGet();
-							
-							synchronized(task) {
-								task.addAll(lp);
-							}
-						}));
+						if(fetchEpisodesPage(task, payload, page, itemsPerPage, itemParser) == PAGE_INTERRUPTED) {
+							interrupted.set(true);
+						}
+					});
+				}
+			}
+			
+			return true;
+		}
+		
+		@Override
+		protected void getEpisodes(ListTask<Episode> task, Program program, List<SeasonInfo> seasons,
+				Function<JSONCollection, Episode> itemParser, int itemsPerPage) throws Exception {
+			Batch batch = new Batch();
+			Ref.Mutable<Boolean> interrupted = new Ref.Mutable<>(false);
+			
+			try {
+				for(SeasonInfo info : seasons) {
+					JSONCollection payload = JSONCollection.ofObject(
+						"carouselId", JSONObject.ofString(info.carouselId()),
+						"criteria", JSONCollection.ofObject(
+							"filterCriterias", JSONObject.ofString(info.seasonId()),
+							"sortOption", JSONObject.ofString("DESC")
+						),
+						"paging", JSONCollection.ofObject(
+							"count", JSONObject.ofInt(itemsPerPage),
+							"position", JSONObject.ofInt(1)
+						)
+					);
+					
+					if(interrupted.get()
+							|| !getSeasonEpisodes(task, batch, payload, itemsPerPage, itemParser, interrupted)) {
+						return; // Interrupted, do not continue
+					}
+				}
+			} finally {
+				batch.await();
+			}
+		}
+	}
+	
+	// Tasks of a single call submitted to the shared executor. Since the executor is shared,
+	// it cannot be shut down to wait for the tasks, therefore they are tracked separately.
+	private final class Batch {
+		
+		private final List<Future<?>> futures = new ArrayList<>();
+		private volatile boolean failed;
+		
+		public void submit(CheckedRunnable action) {
+			futures.add(executor.submit(Common.handleErrors(() -> {
+				try {
+					action.run();
+				} catch(Exception ex) {
+					failed = true;
+					throw ex; // Forward the exception
+				}
+			})));
+		}
+		
+		// Waits for all the tasks and returns whether all of them succeeded.
+		public boolean await() throws InterruptedException {
+			try {
+				for(Future<?> future : futures) {
+					try {
+						future.get();
+					} catch(ExecutionException ex) {
+						// Already handled by the task itself
 					}
 				}
 			} finally {
-				es.shutdown();
-				es.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				// Cancel the remaining tasks, if interrupted
+				for(Future<?> future : futures) {
+					future.cancel(true);
+				}
 			}
+			
+			return !failed;
 		}
 	}
 	
 	private final class SerialStrategy extends StrategyBase {
 		
 		@Override
-		protected void getPrograms(ListTask<Program> task, JSONCollection payload, int page,
+		protected boolean getPrograms(ListTask<Program> task, JSONCollection payload, int page,
 				int maxPage, int itemsPerPage) throws Exception {
 			while(++page <= maxPage) {
 				payload.set("paging.position", (page - 1) * itemsPerPage + 1);
@@ -942,9 +1247,11 @@ public final class Oneplay {
 				});
 				
 				if(!parseCarouselData(task, data, this::parseProgramItem)) {
-					return; // Interrupted, do not continue
+					return false; // Interrupted, do not continue
 				}
 			}
+			
+			return true;
 		}
 		
 		@Override
@@ -1018,7 +1325,7 @@ public final class Oneplay {
 		public URI uri() { return uri; }
 		public String title() { return title; }
 	}
-
+	
 	private static final class SeasonInfo {
 		
 		private final String seasonId;
@@ -1032,7 +1339,7 @@ public final class Oneplay {
 		public String carouselId() { return carouselId; }
 		public String seasonId() { return seasonId; }
 	}
-
+	
 	private static final class MediaInfo {
 		
 		private final String programName;
@@ -37,6 +37,9 @@ public final class OneplayEnginePlugin extends PluginBase {
 	
 	// Default values of configuration properties
 	private static final boolean DEFAULT_ENABLE_LOGGING = false;
+	private static final int DEFAULT_PARALLELISM = Oneplay.defaultParallelism();
+	private static final int DEFAULT_CONNECTION_IDLE_TIMEOUT_MS = Oneplay.defaultConnectionIdleTimeoutMs();
+	private static final int DEFAULT_WARM_UP_CONNECTIONS = Oneplay.defaultWarmUpConnections();
 	
 	private String translatedTitle;
 	private PluginConfiguration.Builder configuration;
@@ -62,6 +65,18 @@ public final class OneplayEnginePlugin extends PluginBase {
 			builder.addProperty(ConfigurationProperty.ofString("synthetic_accounts").asHidden(true));
 		}
 		
+		builder.addProperty(ConfigurationProperty.ofInteger("parallelism")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_PARALLELISM)
+			.withOrder(90));
+		builder.addProperty(ConfigurationProperty.ofInteger("connectionIdleTimeoutMs")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_CONNECTION_IDLE_TIMEOUT_MS)
+			.withOrder(92));
+		builder.addProperty(ConfigurationProperty.ofInteger("warmUpConnections")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_WARM_UP_CONNECTIONS)
+			.withOrder(94));
 		builder.addProperty(ConfigurationProperty.ofBoolean("enableLogging")
 			.inGroup(group)
 			.withDefaultValue(DEFAULT_ENABLE_LOGGING)
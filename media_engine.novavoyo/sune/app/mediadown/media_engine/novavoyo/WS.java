@@ -1,26 +1,80 @@
 package sune.app.mediadown.media_engine.novavoyo;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import sune.app.mediadown.net.Web;
 import sune.app.mediadown.net.Web.Request;
 import sune.app.mediadown.util.JSON;
 import sune.app.mediadown.util.JSON.JSONCollection;
 
+// Messages are parsed and dispatched to the listener on a small shared executor, not on the thread
+// that delivers them, so that a large message does not delay other messages (e.g. pings). Messages
+// that consist of multiple fragments are parsed while they are being received, the fragments are
+// fed directly to the parser instead of being joined to a single string first. Since messages are
+// dispatched concurrently, the listener must not depend on their order.
 public final class WS {
 	
+	private static final int MAX_DISPATCH_THREADS = 4;
+	private static final int MAX_QUEUED_MESSAGES = 256;
+	private static final long KEEP_ALIVE_MS = 30000L;
+	// The longest time to wait for the next fragment of a message being parsed
+	private static final long FRAGMENT_TIMEOUT_MS = 30000L;
+	
+	private static final ThreadPoolExecutor executor;
+	
+	static {
+		executor = new ThreadPoolExecutor(
+			MAX_DISPATCH_THREADS, MAX_DISPATCH_THREADS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(MAX_QUEUED_MESSAGES), new DaemonThreadFactory()
+		);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
 	private final WebSocket ws;
 	private final Listener listener;
+	private final WebSocketListener wsListener;
 	
 	public WS(Request request, Listener listener) {
 		this.listener = Objects.requireNonNull(listener);
-		this.ws = Web.newWebSocket(Objects.requireNonNull(request), new WebSocketListener());
+		this.wsListener = new WebSocketListener();
+		this.ws = Web.newWebSocket(Objects.requireNonNull(request), wsListener);
+	}
+	
+	private final void dispatch(JSONCollection json) {
+		try {
+			listener.onMessageReceived(json);
+		} catch(RuntimeException ex) {
+			// Ignore, a single invalid message should not break the connection
+		}
 	}
 	
 	private final void onMessageReceived(String text) {
-		listener.onMessageReceived(JSON.read(text));
+		dispatch(JSON.read(text));
+	}
+	
+	private final void onMessageReceived(InputStream stream) {
+		JSONCollection json;
+		
+		try(stream) {
+			json = JSON.read(stream);
+		} catch(Exception ex) {
+			return; // Ignore, a single invalid message should not break the connection
+		}
+		
+		dispatch(json);
 	}
 	
 	public void send(String text) {
@@ -29,6 +83,9 @@ public final class WS {
 	
 	public void close() {
 		ws.abort();
+		// Aborting does not notify the listener, end the message being parsed, if any, so that
+		// the dispatch thread parsing it is not waiting for more fragments
+		wsListener.endStream();
 	}
 	
 	public static interface Listener {
@@ -40,7 +97,18 @@ public final class WS {
 	
 	private final class WebSocketListener implements WebSocket.Listener {
 		
-		private final StringBuilder bufText = new StringBuilder();
+		// The stream of the message being received, if it is being parsed already
+		private volatile FragmentInputStream stream;
+		// The text of the message being received, if it could not be parsed right away
+		private StringBuilder bufText;
+		
+		private final void endStream() {
+			FragmentInputStream current;
+			if((current = stream) != null) {
+				current.end(); // Let the parser fail instead of waiting forever
+				stream = null;
+			}
+		}
 		
 		@Override
 		public void onOpen(WebSocket webSocket) {
@@ -50,25 +118,177 @@ public final class WS {
 		
 		@Override
 		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+			endStream();
 			listener.onClose(statusCode, reason);
 			return WebSocket.Listener.super.onClose(webSocket, statusCode, reason);
 		}
 		
 		@Override
 		public void onError(WebSocket webSocket, Throwable error) {
+			endStream();
 			throw new RuntimeException(error);
 		}
 		
 		@Override
 		public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
-			bufText.append(data);
+			FragmentInputStream current;
+			if((current = stream) != null) {
+				current.add(data, last);
+				
+				if(last) {
+					stream = null;
+				}
+			} else if(bufText != null) {
+				bufText.append(data);
+				
+				if(last) {
+					String text = bufText.toString();
+					bufText = null;
+					onMessageReceived(text);
+				}
+			} else if(last) {
+				// A single fragment message, parse it off this thread, if possible
+				String text = data.toString();
+				
+				try {
+					executor.execute(() -> onMessageReceived(text));
+				} catch(RejectedExecutionException ex) {
+					onMessageReceived(text);
+				}
+			} else {
+				FragmentInputStream newStream = new FragmentInputStream();
+				
+				try {
+					executor.execute(() -> onMessageReceived(newStream));
+					stream = newStream;
+					stream.add(data, false);
+				} catch(RejectedExecutionException ex) {
+					// Too many messages are being processed, fall back to joining the fragments
+					bufText = new StringBuilder(data);
+				}
+			}
+			
+			return WebSocket.Listener.super.onText(webSocket, data, last);
+		}
+	}
+	
+	// An input stream of UTF-8 encoded fragments of a single message. Adding fragments never blocks,
+	// so the delivering thread is never waiting for the parser.
+	private static final class FragmentInputStream extends InputStream {
+		
+		private static final ByteBuffer END = ByteBuffer.allocate(0);
+		
+		private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+		private ByteBuffer current;
+		private boolean ended;
+		// A high surrogate at the end of the previous fragment, if any
+		private char pendingHighSurrogate;
+		
+		public void add(CharSequence data, boolean last) {
+			CharBuffer chars;
+			int length = data.length();
+			boolean hasPending = pendingHighSurrogate != 0;
+			boolean endsWithHigh = !last && length > 0 && Character.isHighSurrogate(data.charAt(length - 1));
+			
+			if(hasPending || endsWithHigh) {
+				// Do not split a surrogate pair between two encoded chunks
+				StringBuilder builder = new StringBuilder(length + 1);
+				
+				if(hasPending) {
+					builder.append(pendingHighSurrogate);
+					pendingHighSurrogate = 0;
+				}
+				
+				builder.append(data, 0, endsWithHigh ? length - 1 : length);
+				
+				if(endsWithHigh) {
+					pendingHighSurrogate = data.charAt(length - 1);
+				}
+				
+				chars = CharBuffer.wrap(builder);
+			} else {
+				chars = CharBuffer.wrap(data);
+			}
+			
+			if(chars.hasRemaining()) {
+				chunks.add(StandardCharsets.UTF_8.encode(chars));
+			}
 			
 			if(last) {
-				onMessageReceived(bufText.toString());
-				bufText.setLength(0);
+				end();
+			}
+		}
+		
+		public void end() {
+			chunks.add(END);
+		}
+		
+		private final boolean nextChunk() throws IOException {
+			if(ended) {
+				return false;
 			}
 			
-			return WebSocket.Listener.super.onText(webSocket, data, last);
+			while(current == null || !current.hasRemaining()) {
+				try {
+					current = chunks.poll(FRAGMENT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch(InterruptedException ex) {
+					throw new IOException(ex);
+				}
+				
+				if(current == null) {
+					// The rest of the message never came, fail the parsing instead of blocking the thread
+					ended = true;
+					throw new IOException("Timed out while waiting for the next fragment");
+				}
+				
+				if(current == END) {
+					ended = true;
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(!nextChunk()) {
+				return -1;
+			}
+			
+			return current.get() & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Objects.checkFromIndexSize(off, len, b.length);
+			
+			if(len == 0) {
+				return 0;
+			}
+			
+			if(!nextChunk()) {
+				return -1;
+			}
+			
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			return count;
+		}
+		
+		@Override
+		public int available() {
+			return current != null ? current.remaining() : 0;
+		}
+	}
+	
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
 		}
 	}
 }
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
@@ -79,6 +80,11 @@ public final class StreamCZEngine implements MediaEngine {
 				
 				@Override
 				protected void iteration(API.Node category) throws Exception {
+					if(!task.isRunning()) {
+						terminate(); // Stopped while waiting for a permit, do not send any more requests
+						return;
+					}
+					
 					for(API.Node item : API.programs(category.id())) {
 						URI uri = baseUri.resolve(item.urlName());
 						Program program = new Program(uri, item.name(), "id", item.id());
@@ -658,7 +664,13 @@ public final class StreamCZEngine implements MediaEngine {
 	
 	private static abstract class ConcurrentLoop<T> {
 		
-		protected final ExecutorService executor = Threads.Pools.newWorkStealing();
+		private static final int MAX_CONCURRENT_ITERATIONS = 4;
+		
+		// Categories are listed from a single API endpoint, a second listing started meanwhile must
+		// not double the load on it. Fairness lets both listings progress instead of one starving.
+		private static final Semaphore permits = new Semaphore(MAX_CONCURRENT_ITERATIONS, true);
+		
+		protected final ExecutorService executor = Threads.Pools.newFixed(MAX_CONCURRENT_ITERATIONS);
 		protected final AtomicBoolean terminated = new AtomicBoolean();
 		
 		protected abstract void iteration(T value) throws Exception;
@@ -670,7 +682,17 @@ public final class StreamCZEngine implements MediaEngine {
 		}
 		
 		protected final void submit(T value) {
-			executor.submit(Utils.callable(() -> iteration(value)));
+			executor.submit(Utils.callable(() -> {
+				permits.acquire();
+				
+				try {
+					if(!terminated.get()) {
+						iteration(value);
+					}
+				} finally {
+					permits.release();
+				}
+			}));
 		}
 		
 		@SuppressWarnings({ "unchecked", "unused" })